@@ -2,6 +2,9 @@ package com.tutorials.secondsight;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.opencv.android.BaseLoaderCallback;
 import org.opencv.android.CameraBridgeViewBase;
@@ -12,63 +15,138 @@ import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.OpenCVLoader;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
-import org.opencv.highgui.Highgui;
-import org.opencv.imgproc.Imgproc;
 
 import android.app.Activity;
-import android.content.ContentValues;
 import android.content.Intent;
 import android.hardware.Camera;
 import android.hardware.Camera.CameraInfo;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Environment;
-import android.provider.MediaStore;
-import android.provider.MediaStore.Images;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.WindowManager;
 import android.widget.Toast;
 
+import com.tutorials.secondsight.cache.LutCache;
+import com.tutorials.secondsight.cache.ReferenceCache;
+import com.tutorials.secondsight.capture.PhotoEncoder;
+import com.tutorials.secondsight.filters.ChangeDetector;
 import com.tutorials.secondsight.filters.Filter;
+import com.tutorials.secondsight.filters.FilterChain;
 import com.tutorials.secondsight.filters.ImageDetectionFilter;
+import com.tutorials.secondsight.filters.MatPool;
 import com.tutorials.secondsight.filters.NoneFilter;
+import com.tutorials.secondsight.filters.ParallelFilter;
+import com.tutorials.secondsight.filters.PointwiseFilter;
 import com.tutorials.secondsight.filters.convolution.StrokeEdgesFilter;
+import com.tutorials.secondsight.filters.detection.DetectionConfig;
+import com.tutorials.secondsight.filters.detection.MultiImageDetectionFilter;
+import com.tutorials.secondsight.filters.detection.ReferenceDatabase;
+import com.tutorials.secondsight.filters.detection.ReferenceTarget;
 import com.tutorials.secondsight.filters.curve.CrossProcessCurveFilter;
+import com.tutorials.secondsight.filters.curve.CurveFilter;
 import com.tutorials.secondsight.filters.curve.PortraCurveFilter;
 import com.tutorials.secondsight.filters.curve.ProviaCurveFilter;
 import com.tutorials.secondsight.filters.curve.VelviaCurveFilter;
+import com.tutorials.secondsight.filters.lut.Lut3DFilter;
 import com.tutorials.secondsight.filters.mixer.RecolorCVMFilter;
 import com.tutorials.secondsight.filters.mixer.RecolorRCFilter;
 import com.tutorials.secondsight.filters.mixer.RecolorRGVFilter;
+import com.tutorials.secondsight.metrics.FrameMetrics;
+import com.tutorials.secondsight.metrics.MetricsLogger;
+import com.tutorials.secondsight.metrics.MetricsOverlay;
+import com.tutorials.secondsight.pipeline.FramePipeline;
+import com.tutorials.secondsight.pipeline.QualityGovernor;
 
 public class CameraActivity extends Activity implements CvCameraViewListener2 {
   private static final String STATE_CAMERA_INDEX = "cameraIndex";
   private static final String TAG = "CameraActivity";
   private static final String STATE_CURVE_FILTER_INDEX = "curveFilterIndex";
+  private static final String STATE_CURVE_INTENSITY_INDEX =
+    "curveIntensityIndex";
   private static final String STATE_MIXER_FILTER_INDEX = "mixerFilterIndex";
   private static final String STATE_CONVOLUTION_FILTER_INDEX =
     "convolutionFilterIndex";
   private static final String STATE_IMAGE_DETECTION_FILTER_INDEX =
     "imageDetectionFilterIndex";
+  private static final String STATE_METRICS_VISIBLE = "metricsVisible";
+  // Strengths that the curve filters cycle through, from the full curve
+  private static final float[] CURVE_INTENSITIES = { 1f, 0.75f, 0.5f, 0.25f };
+  // Frames that may wait for the filter and detection stages
+  private static final int[] PIPELINE_QUEUE_DEPTHS = { 1, 1 };
+  // Frames tracked with optical flow between full detections
+  private static final int REDETECTION_INTERVAL = 10;
+  // Reference features are found at this many successive half sizes
+  private static final int REFERENCE_SCALE_LEVELS = 3;
+  // Features of the single-target detector; MultiImageDetectionFilter
+  // shares the reference features and only supports STAR and FREAK
+  private static final DetectionConfig DETECTION_CONFIG =
+    DetectionConfig.STAR_FREAK;
+  // Frames are scaled down to at most this height for detection
+  private static final int DETECTION_HEIGHT = 360;
+  // The downscaled edge filter works at most at this height
+  private static final int EDGES_HEIGHT = 360;
+  // Grid of tiles in which the edge and detection filters look for
+  // changes, so that static parts of the scene are not processed again
+  private static final int CHANGE_TILE_COLS = 16;
+  private static final int CHANGE_TILE_ROWS = 9;
+  // Processing quality is lowered while frames miss this rate
+  private static final double TARGET_FPS = 30;
+  // Metrics stages; the first two are also the FramePipeline stages
+  private static final int METRICS_STAGE_FILTERS = 0;
+  private static final int METRICS_STAGE_DETECTION = 1;
+  private static final int METRICS_STAGE_FRAME = 2;
+  private static final long METRICS_DUMP_INTERVAL_MS = 10000;
+  private static final String METRICS_FILE_NAME = "metrics.log";
+  // JPEG is much faster to encode than even lightly compressed PNG
+  private static final int PHOTO_FORMAT = PhotoEncoder.FORMAT_JPEG;
+  // Frames that may wait to be encoded, and the threads encoding them
+  private static final int PHOTO_POOL_SIZE = 6;
+  private static final int PHOTO_ENCODER_THREADS = 2;
+  // Consecutive frames saved by one burst
+  private static final int BURST_FRAME_COUNT = 10;
   
   private int mCameraIndex;
   private boolean mIsCameraFrontFacing;
   private int mNumCameras;
   private CameraBridgeViewBase mCameraView;
   private boolean mIsPhotoPending;
-  private Mat mBgr;
+  private PhotoEncoder mPhotoEncoder;
+  private BurstListener mBurstListener;
+  private volatile int mBurstFramesLeft;
+  private volatile Recording mRecording;
   private boolean mIsMenuLocked;
   
   private Filter[] mCurveFilters;
   private Filter[] mMixerFilters;
   private Filter[] mConvolutionFilters;
+  // Every edge filter, including each stripe's, since they cache their
+  // output and must drop it when the filters before them change
+  private final List<StrokeEdgesFilter> mEdgesFilters =
+      new ArrayList<StrokeEdgesFilter>();
   private Filter[] mImageDetectionFilters;
   private int mCurveFilterIndex;
+  private int mCurveIntensityIndex;
   private int mMixerFilterIndex;
   private int mConvolutionFilterIndex;
   private int mImageDetectionFilterIndex;
+  // Curve and mixer combinations baked into 3D LUTs, by their indices,
+  // at the current curve intensity
+  private Filter[][] mLooks;
+  private LutCache mLutCache;
+  private final FilterChain mFilterChain = new FilterChain();
+  private final FilterChain mDetectionChain = new FilterChain();
+  private FramePipeline mFramePipeline;
+  private final QualityGovernor mQualityGovernor = new QualityGovernor(
+    TARGET_FPS, DETECTION_HEIGHT, REDETECTION_INTERVAL, EDGES_HEIGHT,
+    DETECTION_CONFIG.getKeypointBudget());
+  private final FrameMetrics mFrameMetrics =
+    new FrameMetrics("filters", "detection", "frame");
+  private final MetricsOverlay mMetricsOverlay =
+    new MetricsOverlay(mFrameMetrics);
+  private MetricsLogger mMetricsLogger;
+  private volatile boolean mIsMetricsVisible;
   
   private BaseLoaderCallback mLoaderCallback =
     new BaseLoaderCallback(this) {
@@ -76,38 +154,23 @@ public class CameraActivity extends Activity implements CvCameraViewListener2 {
       public void onManagerConnected(final int status) {
         switch(status) {
           case LoaderCallbackInterface.SUCCESS:
+            if(mPhotoEncoder == null) {
+              // Its buffers are Mats, so it needs the loaded library. It
+              // must exist before the view starts and preallocates them.
+              mPhotoEncoder = new PhotoEncoder(getContentResolver(),
+                  getString(R.string.app_name), PHOTO_POOL_SIZE,
+                  PHOTO_ENCODER_THREADS);
+            }
             mCameraView.enableView();
-            mBgr = new Mat();
-            mCurveFilters = new Filter[] {
-              new NoneFilter(),
-              new PortraCurveFilter(),
-              new ProviaCurveFilter(),
-              new VelviaCurveFilter(),
-              new CrossProcessCurveFilter()
-            };
-            mMixerFilters = new Filter[] {
-              new NoneFilter(),
-              new RecolorRCFilter(),
-              new RecolorRGVFilter(),
-              new RecolorCVMFilter()
-            };
-            mConvolutionFilters = new Filter[] {
-              new NoneFilter(),
-              new StrokeEdgesFilter()
-            };
-            final Filter starryNight;
-            try {
-              starryNight =
-                  new ImageDetectionFilter(CameraActivity.this,
-                      R.drawable.dominos);
-            } catch(IOException e) {
-              Log.e(TAG, "Failed to load drawable: " + "dominos");
-              break;
+            // The filters survive from an earlier connection, except the
+            // detection filters if their targets failed to load
+            if(mCurveFilters == null) {
+              createFilters();
+            }
+            if(mImageDetectionFilters == null) {
+              createImageDetectionFilters();
             }
-            mImageDetectionFilters = new Filter[] {
-              new NoneFilter(),
-              starryNight
-            };
+            updateFilterChain();
             break;
           default:
             super.onManagerConnected(status);
@@ -116,6 +179,73 @@ public class CameraActivity extends Activity implements CvCameraViewListener2 {
       }
   };
   
+  private void createFilters() {
+    mCurveFilters = new Filter[] {
+      new NoneFilter(),
+      new PortraCurveFilter(),
+      new ProviaCurveFilter(),
+      new VelviaCurveFilter(),
+      new CrossProcessCurveFilter()
+    };
+    mMixerFilters = new Filter[] {
+      new NoneFilter(),
+      new RecolorRCFilter(),
+      new RecolorRGVFilter(),
+      new RecolorCVMFilter()
+    };
+    mLooks = new Filter[mCurveFilters.length][mMixerFilters.length];
+    mLutCache = LutCache.create(this);
+    updateCurveIntensity();
+    final StrokeEdgesFilter downscaledEdges =
+        new StrokeEdgesFilter(EDGES_HEIGHT);
+    downscaledEdges.setChangeDetector(new ChangeDetector(
+        CHANGE_TILE_COLS, CHANGE_TILE_ROWS));
+    mQualityGovernor.addEdgesFilter(downscaledEdges);
+    mEdgesFilters.add(downscaledEdges);
+    mConvolutionFilters = new Filter[] {
+      new NoneFilter(),
+      new ParallelFilter(new ParallelFilter.Factory() {
+        @Override
+        public Filter create() {
+          final StrokeEdgesFilter edges = new StrokeEdgesFilter();
+          edges.setChangeDetector(new ChangeDetector(
+              CHANGE_TILE_COLS, CHANGE_TILE_ROWS));
+          mEdgesFilters.add(edges);
+          return edges;
+        }
+      }, StrokeEdgesFilter.HALO),
+      downscaledEdges
+    };
+  }
+  
+  // Leaves mImageDetectionFilters null if the targets fail to load
+  private void createImageDetectionFilters() {
+    final ReferenceTarget dominos;
+    final ReferenceDatabase referenceDatabase;
+    try {
+      dominos = ReferenceCache.loadTarget(this, R.drawable.dominos,
+          DETECTION_CONFIG, REFERENCE_SCALE_LEVELS);
+      referenceDatabase = new ReferenceDatabase(getCacheDir());
+    } catch(IOException e) {
+      Log.e(TAG, "Failed to load the detection targets", e);
+      return;
+    }
+    referenceDatabase.add(dominos);
+    referenceDatabase.train();
+    final ImageDetectionFilter starryNight =
+        new ImageDetectionFilter(dominos, DETECTION_CONFIG,
+            REDETECTION_INTERVAL, DETECTION_HEIGHT);
+    starryNight.setMetrics(mFrameMetrics);
+    starryNight.setChangeDetector(new ChangeDetector(
+        CHANGE_TILE_COLS, CHANGE_TILE_ROWS));
+    mQualityGovernor.addDetectionFilter(starryNight);
+    mImageDetectionFilters = new Filter[] {
+      new NoneFilter(),
+      starryNight,
+      new MultiImageDetectionFilter(referenceDatabase)
+    };
+  }
+  
   @Override
   protected void onCreate(final Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
@@ -125,15 +255,20 @@ public class CameraActivity extends Activity implements CvCameraViewListener2 {
       mCameraIndex = savedInstanceState.getInt(STATE_CAMERA_INDEX, 0);
       mCurveFilterIndex =
           savedInstanceState.getInt(STATE_CURVE_FILTER_INDEX, 0);
+      mCurveIntensityIndex =
+          savedInstanceState.getInt(STATE_CURVE_INTENSITY_INDEX, 0);
       mMixerFilterIndex =
           savedInstanceState.getInt(STATE_MIXER_FILTER_INDEX, 0);
       mConvolutionFilterIndex =
           savedInstanceState.getInt(STATE_CONVOLUTION_FILTER_INDEX, 0);
       mImageDetectionFilterIndex =
           savedInstanceState.getInt(STATE_IMAGE_DETECTION_FILTER_INDEX, 0);
+      mIsMetricsVisible =
+          savedInstanceState.getBoolean(STATE_METRICS_VISIBLE, false);
     } else {
       mCameraIndex = 0;
       mCurveFilterIndex = 0;
+      mCurveIntensityIndex = 0;
       mMixerFilterIndex = 0;
       mConvolutionFilterIndex = 0;
       mImageDetectionFilterIndex = 0;
@@ -144,6 +279,7 @@ public class CameraActivity extends Activity implements CvCameraViewListener2 {
     mIsCameraFrontFacing =
         (cameraInfo.facing == CameraInfo.CAMERA_FACING_FRONT);
     mNumCameras = Camera.getNumberOfCameras();
+    mFilterChain.setParallel(Runtime.getRuntime().availableProcessors() > 1);
 
     // Using Java instead of native, because the latter crashes after
     // a few seconds
@@ -157,11 +293,14 @@ public class CameraActivity extends Activity implements CvCameraViewListener2 {
     super.onSaveInstanceState(savedInstanceState);
     savedInstanceState.putInt(STATE_CAMERA_INDEX, mCameraIndex);
     savedInstanceState.putInt(STATE_CURVE_FILTER_INDEX, mCurveFilterIndex);
+    savedInstanceState.putInt(STATE_CURVE_INTENSITY_INDEX,
+        mCurveIntensityIndex);
     savedInstanceState.putInt(STATE_MIXER_FILTER_INDEX, mMixerFilterIndex);
     savedInstanceState.putInt(STATE_CONVOLUTION_FILTER_INDEX,
         mConvolutionFilterIndex);
     savedInstanceState.putInt(STATE_IMAGE_DETECTION_FILTER_INDEX,
         mImageDetectionFilterIndex);
+    savedInstanceState.putBoolean(STATE_METRICS_VISIBLE, mIsMetricsVisible);
   }
   
   @Override
@@ -186,6 +325,9 @@ public class CameraActivity extends Activity implements CvCameraViewListener2 {
     if(mCameraView != null) {
       mCameraView.disableView();
     }
+    if(mPhotoEncoder != null) {
+      mPhotoEncoder.shutdown();
+    }
     super.onDestroy();
   }
   
@@ -198,6 +340,13 @@ public class CameraActivity extends Activity implements CvCameraViewListener2 {
     return true;
   }
   
+  @Override
+  public boolean onPrepareOptionsMenu(final Menu menu) {
+    menu.findItem(R.id.menu_record).setTitle(mRecording == null ?
+        R.string.menu_record : R.string.menu_stop_recording);
+    return true;
+  }
+  
   @Override
   public boolean onOptionsItemSelected(final MenuItem item) {
     if(mIsMenuLocked) {
@@ -213,114 +362,355 @@ public class CameraActivity extends Activity implements CvCameraViewListener2 {
         mIsMenuLocked = true;
         mIsPhotoPending = true;
         return true;
+      case R.id.menu_burst:
+        if(mBurstFramesLeft == 0) {
+          mBurstListener = new BurstListener(BURST_FRAME_COUNT);
+          mBurstFramesLeft = BURST_FRAME_COUNT;
+        }
+        return true;
+      case R.id.menu_record:
+        if(mPhotoEncoder == null) {
+          // OpenCV is not loaded yet
+          return true;
+        }
+        if(mRecording == null) {
+          mRecording = new Recording(new File(mPhotoEncoder.getAlbumDir(),
+              "sequence_" + System.currentTimeMillis()));
+          invalidateOptionsMenu();
+        } else {
+          stopRecording();
+        }
+        return true;
       case R.id.menu_next_curve_filter:
         mCurveFilterIndex = (mCurveFilterIndex + 1) % mCurveFilters.length;
+        updateFilterChain();
+        return true;
+      case R.id.menu_next_curve_intensity:
+        mCurveIntensityIndex =
+          (mCurveIntensityIndex + 1) % CURVE_INTENSITIES.length;
+        updateCurveIntensity();
+        updateFilterChain();
         return true;
       case R.id.menu_next_mixer_filter:
         mMixerFilterIndex = (mMixerFilterIndex + 1) % mMixerFilters.length;
+        updateFilterChain();
         return true;
       case R.id.menu_next_convolution_filter:
         mConvolutionFilterIndex =
           (mConvolutionFilterIndex + 1) % mConvolutionFilters.length;
+        updateFilterChain();
         return true;
       case R.id.menu_next_image_detection_filter:
+        if(mImageDetectionFilters == null) {
+          // The targets failed to load
+          return true;
+        }
         mImageDetectionFilterIndex =
           (mImageDetectionFilterIndex + 1) % mImageDetectionFilters.length;
+        updateFilterChain();
+        return true;
+      case R.id.menu_toggle_metrics:
+        mIsMetricsVisible = !mIsMetricsVisible;
         return true;
       default:
         return super.onOptionsItemSelected(item);
     }
   }
 
+  // Sets the selected intensity on every curve filter, and drops the
+  // looks that were baked at another one
+  private void updateCurveIntensity() {
+    final float intensity = CURVE_INTENSITIES[mCurveIntensityIndex];
+    for(final Filter filter : mCurveFilters) {
+      if(filter instanceof CurveFilter) {
+        ((CurveFilter)filter).setIntensity(intensity);
+      }
+    }
+    for(final Filter[] looks : mLooks) {
+      Arrays.fill(looks, null);
+    }
+  }
+  
+  private void updateFilterChain() {
+    for(final StrokeEdgesFilter edges : mEdgesFilters) {
+      edges.invalidateCache();
+    }
+    final Filter look = selectLook();
+    if(look != null) {
+      mFilterChain.setFilters(look,
+          selectFilter(mConvolutionFilters, mConvolutionFilterIndex));
+    } else {
+      mFilterChain.setFilters(
+          selectFilter(mCurveFilters, mCurveFilterIndex),
+          selectFilter(mMixerFilters, mMixerFilterIndex),
+          selectFilter(mConvolutionFilters, mConvolutionFilterIndex));
+    }
+    mDetectionChain.setFilters(
+        selectFilter(mImageDetectionFilters, mImageDetectionFilterIndex));
+  }
+  
+  // Returns the selected curve and mixer as one 3D LUT, or null if only
+  // one of them is selected, since its own LUT is cheaper
+  private Filter selectLook() {
+    final Filter curve = selectFilter(mCurveFilters, mCurveFilterIndex);
+    final Filter mixer = selectFilter(mMixerFilters, mMixerFilterIndex);
+    if(!(curve instanceof PointwiseFilter) ||
+        !(mixer instanceof PointwiseFilter)) {
+      return null;
+    }
+    Filter look = mLooks[mCurveFilterIndex][mMixerFilterIndex];
+    if(look != null) {
+      return look;
+    }
+    // A baked look no longer follows the curve's intensity, so it is part
+    // of the ID
+    final String lookID = curve.getClass().getSimpleName() + "@" +
+        CURVE_INTENSITIES[mCurveIntensityIndex] + "+" +
+        mixer.getClass().getSimpleName() + ":" + Lut3DFilter.DEFAULT_SIZE;
+    Lut3DFilter lut = mLutCache.read(lookID);
+    if(lut == null) {
+      lut = Lut3DFilter.bake(Lut3DFilter.DEFAULT_SIZE,
+          (PointwiseFilter)curve, (PointwiseFilter)mixer);
+      try {
+        mLutCache.write(lookID, lut);
+      } catch(IOException e) {
+        Log.e(TAG, "Failed to cache look " + lookID, e);
+      }
+    }
+    mLooks[mCurveFilterIndex][mMixerFilterIndex] = lut;
+    return lut;
+  }
+  
+  private static Filter selectFilter(final Filter[] filters, final int index) {
+    if(filters == null) {
+      return null;
+    }
+    return filters[index];
+  }
+
   @Override
   public void onCameraViewStarted(int width, int height) {    
+    mPhotoEncoder.preallocate(width, height);
+    if(Runtime.getRuntime().availableProcessors() > 1) {
+      // Let detection of one frame overlap filtering of the next
+      mFramePipeline = new FramePipeline(PIPELINE_QUEUE_DEPTHS,
+          mFilterChain, mDetectionChain);
+      mFramePipeline.setMetrics(mFrameMetrics);
+      mFramePipeline.start(width, height);
+    }
+    mFrameMetrics.setMatPool(MatPool.getShared());
+    mFrameMetrics.reset();
+    final File metricsDir = getExternalFilesDir(null);
+    if(metricsDir != null) {
+      mMetricsLogger = new MetricsLogger(mFrameMetrics,
+          new File(metricsDir, METRICS_FILE_NAME), METRICS_DUMP_INTERVAL_MS);
+      mMetricsLogger.start();
+    }
   }
 
   @Override
   public void onCameraViewStopped() {
+    stopRecording();
+    if(mFramePipeline != null) {
+      mFramePipeline.stop();
+      mFramePipeline = null;
+    }
+    if(mMetricsLogger != null) {
+      mMetricsLogger.finish();
+      mMetricsLogger = null;
+    }
+    // The next session may use another frame size
+    MatPool.getShared().trim();
   }
 
   @Override
   public Mat onCameraFrame(CvCameraViewFrame inputFrame) {
+    final long startTime = System.nanoTime();
     final Mat rgba = inputFrame.rgba();
-    if(mCurveFilters != null) {
-      mCurveFilters[mCurveFilterIndex].apply(rgba, rgba);
-    }
-    if(mMixerFilters != null) {
-      mMixerFilters[mMixerFilterIndex].apply(rgba, rgba);
-    }
-    if(mConvolutionFilters != null) {
-      mConvolutionFilters[mConvolutionFilterIndex].apply(rgba, rgba);
-    }
-    if(mImageDetectionFilters != null) {
-      mImageDetectionFilters[mImageDetectionFilterIndex].apply(rgba, rgba);
+    final FramePipeline framePipeline = mFramePipeline;
+    if(framePipeline != null) {
+      framePipeline.submit(rgba);
+      framePipeline.render(rgba);
+      mFrameMetrics.setDroppedFrameCount(
+          framePipeline.getDroppedFrameCount());
+      final long bottleneckNanos = framePipeline.getBottleneckNanos();
+      if(bottleneckNanos > 0) {
+        mQualityGovernor.update(bottleneckNanos);
+      }
+    } else {
+      mFilterChain.apply(rgba, rgba);
+      final long filteredTime = System.nanoTime();
+      mFrameMetrics.recordStage(METRICS_STAGE_FILTERS,
+          filteredTime - startTime);
+      mDetectionChain.apply(rgba, rgba);
+      final long detectedTime = System.nanoTime();
+      mFrameMetrics.recordStage(METRICS_STAGE_DETECTION,
+          detectedTime - filteredTime);
+      mQualityGovernor.update(detectedTime - startTime);
     }
     if(mIsPhotoPending) {
       mIsPhotoPending = false;
       takePhoto(rgba);
     }
+    if(mBurstFramesLeft > 0) {
+      if(!mPhotoEncoder.capture(rgba, PHOTO_FORMAT, mBurstListener)) {
+        mBurstListener.onPhotoRefused();
+      }
+      mBurstFramesLeft--;
+    }
+    final Recording recording = mRecording;
+    if(recording != null) {
+      recording.capture(rgba);
+    }
+    mFrameMetrics.setPhotoBacklog(mPhotoEncoder.getPendingCount(),
+        mPhotoEncoder.getRefusedCount());
     if(mIsCameraFrontFacing) {
       Core.flip(rgba, rgba, 1);
     }
+    mFrameMetrics.recordStage(METRICS_STAGE_FRAME,
+        System.nanoTime() - startTime);
+    mFrameMetrics.recordFrame();
+    MatPool.getShared().endFrame();
+    if(mIsMetricsVisible) {
+      mMetricsOverlay.draw(rgba);
+    }
     return rgba;
   }
   
-  private void takePhoto(Mat rgba) {
-    final long currentTimeMillis = System.currentTimeMillis();
-    final String appName = getString(R.string.app_name);
-    final String galleryPath =
-        Environment.getExternalStoragePublicDirectory(
-            Environment.DIRECTORY_PICTURES).toString();
-    final String albumPath = galleryPath + "/" + appName;
-    final String photoPath = albumPath + "/" + currentTimeMillis + ".png";
-    final ContentValues values = new ContentValues();
-    values.put(MediaStore.MediaColumns.DATA, photoPath);
-    values.put(Images.Media.MIME_TYPE, LabActivity.PHOTO_MIME_TYPE);
-    values.put(Images.Media.TITLE, appName);
-    values.put(Images.Media.DESCRIPTION, appName);
-    values.put(Images.Media.DATE_TAKEN, currentTimeMillis);
-    
-    File album = new File(albumPath);
-    if(!album.isDirectory() && !album.mkdirs()) {
-      Log.e(TAG, "Failed to create album directory at " + albumPath);
+  private void takePhoto(final Mat rgba) {
+    // The encoder copies the frame and saves it on its own thread
+    if(!mPhotoEncoder.capture(rgba, PHOTO_FORMAT, mPhotoListener)) {
+      Log.e(TAG, "Still saving earlier photos");
       onTakePhotoFailed();
-      return;
     }
-    
-    Imgproc.cvtColor(rgba, mBgr, Imgproc.COLOR_RGBA2BGR, 3);
-    if(!Highgui.imwrite(photoPath, mBgr)) {
-      Log.e(TAG, "Failed to save photo to " + photoPath);
-      onTakePhotoFailed();
-    }
-    
-    Uri uri;
-    try {
-      uri = getContentResolver()
-          .insert(Images.Media.EXTERNAL_CONTENT_URI, values);
-    } catch(Exception e) {
-      File photo = new File(photoPath);
-      if(!photo.delete()) {
-        Log.e(TAG, "Failed to delete non-inserted photo");
+  }
+  
+  private final PhotoEncoder.Listener mPhotoListener =
+    new PhotoEncoder.Listener() {
+      @Override
+      public void onPhotoSaved(final Uri uri, final String path,
+          final String mimeType) {
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            if(isFinishing()) {
+              return;
+            }
+            final Intent intent =
+                new Intent(CameraActivity.this, LabActivity.class);
+            intent.putExtra(LabActivity.EXTRA_PHOTO_URI, uri);
+            intent.putExtra(LabActivity.EXTRA_PHOTO_DATA_PATH, path);
+            intent.putExtra(LabActivity.EXTRA_PHOTO_MIME_TYPE, mimeType);
+            startActivity(intent);
+          }
+        });
       }
-      onTakePhotoFailed();
+      
+      @Override
+      public void onPhotoFailed() {
+        onTakePhotoFailed();
+      }
+  };
+  
+  private void onTakePhotoFailed() {
+    mIsMenuLocked = false;
+    showToast(getString(R.string.photo_error_message));
+  }
+  
+  private void stopRecording() {
+    final Recording recording = mRecording;
+    if(recording == null) {
       return;
     }
-    
-    final Intent intent = new Intent(this, LabActivity.class);
-    intent.putExtra(LabActivity.EXTRA_PHOTO_URI, uri);
-    intent.putExtra(LabActivity.EXTRA_PHOTO_DATA_PATH, photoPath);
-    startActivity(intent);
+    mRecording = null;
+    runOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        invalidateOptionsMenu();
+      }
+    });
+    showToast(getString(R.string.recording_saved_message,
+        recording.mDir.getPath(), recording.getDroppedCount()));
   }
   
-  private void onTakePhotoFailed() {
-    mIsMenuLocked = false;
-    final String errorMessage = getString(R.string.photo_error_message);
+  private void showToast(final String message) {
     runOnUiThread(new Runnable() {
       @Override
       public void run() {
-        Toast.makeText(CameraActivity.this, errorMessage, Toast.LENGTH_SHORT)
+        Toast.makeText(CameraActivity.this, message, Toast.LENGTH_SHORT)
              .show();
       }
     });
   }
+  
+  // Counts the photos of a burst and reports once all are handled
+  private class BurstListener implements PhotoEncoder.Listener {
+    private final int mFrameCount;
+    private int mSavedCount;
+    private int mHandledCount;
+    
+    BurstListener(final int frameCount) {
+      mFrameCount = frameCount;
+    }
+    
+    @Override
+    public synchronized void onPhotoSaved(final Uri uri, final String path,
+        final String mimeType) {
+      mSavedCount++;
+      onPhotoHandled();
+    }
+    
+    @Override
+    public synchronized void onPhotoFailed() {
+      onPhotoHandled();
+    }
+    
+    // The encoder had no free buffer for the frame
+    synchronized void onPhotoRefused() {
+      onPhotoHandled();
+    }
+    
+    private void onPhotoHandled() {
+      mHandledCount++;
+      if(mHandledCount == mFrameCount) {
+        showToast(getString(R.string.burst_saved_message, mSavedCount,
+            mFrameCount));
+      }
+    }
+  }
+  
+  // Saves every frame to an image sequence while it is set as mRecording
+  private class Recording implements PhotoEncoder.Listener {
+    final File mDir;
+    private int mFrameIndex;
+    private int mDroppedCount;
+    
+    Recording(final File dir) {
+      mDir = dir;
+    }
+    
+    // Called on the camera thread
+    void capture(final Mat rgba) {
+      if(mPhotoEncoder.captureSequenceFrame(rgba, PHOTO_FORMAT, mDir,
+          mFrameIndex, this)) {
+        mFrameIndex++;
+      } else {
+        onPhotoFailed();
+      }
+    }
+    
+    synchronized int getDroppedCount() {
+      return mDroppedCount;
+    }
+    
+    @Override
+    public void onPhotoSaved(final Uri uri, final String path,
+        final String mimeType) {
+    }
+    
+    @Override
+    public synchronized void onPhotoFailed() {
+      mDroppedCount++;
+    }
+  }
 }
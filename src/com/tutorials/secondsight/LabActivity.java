@@ -8,19 +8,27 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Images;
+import android.util.DisplayMetrics;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.ImageView;
 
+import com.tutorials.secondsight.photo.BitmapCache;
+import com.tutorials.secondsight.photo.PhotoLoader;
+
 public class LabActivity extends Activity {
   public static final String PHOTO_MIME_TYPE = "image/png";
   public static final String EXTRA_PHOTO_URI =
     "com.tutorials.secondsight.LabActivity.extra.PHOTO_URI";
   public static final String EXTRA_PHOTO_DATA_PATH =
     "com.tutorials.secondsight.LabActivity.extra.PHOTO_DATA_PATH";
+  public static final String EXTRA_PHOTO_MIME_TYPE =
+    "com.tutorials.secondsight.LabActivity.extra.PHOTO_MIME_TYPE";
   
   private Uri mUri;
   private String mDataPath;
+  private String mMimeType;
+  private PhotoLoader mPhotoLoader;
   
   @Override
   protected void onCreate(final Bundle savedInstanceState) {
@@ -28,9 +36,29 @@ public class LabActivity extends Activity {
     final Intent intent = getIntent();
     mUri = intent.getParcelableExtra(EXTRA_PHOTO_URI);
     mDataPath = intent.getStringExtra(EXTRA_PHOTO_DATA_PATH);
+    mMimeType = intent.getStringExtra(EXTRA_PHOTO_MIME_TYPE);
+    if(mMimeType == null) {
+      mMimeType = PHOTO_MIME_TYPE;
+    }
     final ImageView imageView = new ImageView(this);
-    imageView.setImageURI(mUri);
     setContentView(imageView);
+    if(mDataPath != null) {
+      // Decode in the background, at no more than the screen's size
+      final DisplayMetrics metrics = getResources().getDisplayMetrics();
+      mPhotoLoader = new PhotoLoader(BitmapCache.getShared(this));
+      mPhotoLoader.load(mDataPath, imageView, metrics.widthPixels,
+          metrics.heightPixels, false);
+    } else {
+      imageView.setImageURI(mUri);
+    }
+  }
+  
+  @Override
+  public void onDestroy() {
+    if(mPhotoLoader != null) {
+      mPhotoLoader.cancel();
+    }
+    super.onDestroy();
   }
   
   @Override
@@ -77,14 +105,14 @@ public class LabActivity extends Activity {
   
   private void editPhoto() {
     final Intent intent = new Intent(Intent.ACTION_EDIT);
-    intent.setDataAndType(mUri, PHOTO_MIME_TYPE);
+    intent.setDataAndType(mUri, mMimeType);
     startActivity(Intent.createChooser(
         intent, getString(R.string.photo_edit_chooser_title)));
   }
   
   private void sharePhoto() {
     final Intent intent = new Intent(Intent.ACTION_SEND);
-    intent.setType(PHOTO_MIME_TYPE);
+    intent.setType(mMimeType);
     intent.putExtra(Intent.EXTRA_STREAM, mUri);
     intent.putExtra(
         Intent.EXTRA_SUBJECT, getString(R.string.photo_send_extra_subject));
@@ -0,0 +1,56 @@
+package com.tutorials.secondsight.cache;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.content.Context;
+
+import com.tutorials.secondsight.filters.lut.Lut3DFilter;
+
+public class LutCache {
+  private static final int MAGIC = 0x4c555433; // "LUT3"
+  private static final int VERSION = 1;
+  
+  private final StampedFileCache mFiles;
+  
+  // Entries are invalidated whenever the app, and so the filters that
+  // looks are baked from, is updated
+  public static LutCache create(final Context ctx) {
+    return new LutCache(new File(ctx.getCacheDir(), "luts"),
+        StampedFileCache.getInstallStamp(ctx));
+  }
+  
+  public LutCache(final File dir, final long stamp) {
+    mFiles = new StampedFileCache(dir, ".lut", MAGIC, VERSION, stamp);
+  }
+  
+  // The look ID names the stages and the grid size. Returns null if the
+  // look is not cached.
+  public Lut3DFilter read(final String lookID) {
+    return mFiles.read(lookID, new StampedFileCache.Reader<Lut3DFilter>() {
+      @Override
+      public Lut3DFilter read(final ByteBuffer buffer) {
+        final int size = buffer.getInt();
+        if(size < 2) {
+          return null;
+        }
+        final byte[] table = new byte[3 * size * size * size];
+        buffer.get(table);
+        return new Lut3DFilter(size, table);
+      }
+    });
+  }
+  
+  public void write(final String lookID, final Lut3DFilter lut)
+      throws IOException {
+    mFiles.write(lookID, new StampedFileCache.Writer() {
+      @Override
+      public void write(final DataOutputStream output) throws IOException {
+        output.writeInt(lut.getSize());
+        output.write(lut.getTable());
+      }
+    });
+  }
+}
@@ -0,0 +1,130 @@
+package com.tutorials.secondsight.cache;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.opencv.android.Utils;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.highgui.Highgui;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.tutorials.secondsight.filters.detection.DetectionConfig;
+import com.tutorials.secondsight.filters.detection.ReferenceTarget;
+
+public class ReferenceCache {
+  private static final String TAG = "ReferenceCache";
+  private static final int MAGIC = 0x52454643; // "REFC"
+  private static final int VERSION = 1;
+  
+  private final StampedFileCache mFiles;
+  
+  // Entries are invalidated whenever the app, and so its drawables, is
+  // updated
+  public static ReferenceCache create(final Context ctx) {
+    return new ReferenceCache(new File(ctx.getCacheDir(), "references"),
+        StampedFileCache.getInstallStamp(ctx));
+  }
+  
+  // Loads a drawable as a target whose features are found with the
+  // config's detector and extractor, reusing features cached by an
+  // earlier run when possible
+  public static ReferenceTarget loadTarget(final Context ctx,
+      final int referenceImageResourceID, final DetectionConfig config,
+      final int scaleLevels) throws IOException {
+    final String name =
+        ctx.getResources().getResourceEntryName(referenceImageResourceID);
+    final Mat image = Utils.loadResource(ctx, referenceImageResourceID,
+        Highgui.CV_LOAD_IMAGE_COLOR);
+    final String cacheKey = name + ":" + referenceImageResourceID + ":" +
+        config.getFeatureKey() + ":" + scaleLevels;
+    final ReferenceCache cache = create(ctx);
+    final MatOfKeyPoint keypoints = new MatOfKeyPoint();
+    final Mat descriptors = new Mat();
+    if(cache.read(cacheKey, keypoints, descriptors)) {
+      final ReferenceTarget target =
+          new ReferenceTarget(name, image, keypoints, descriptors);
+      image.release();
+      return target;
+    }
+    final ReferenceTarget target = new ReferenceTarget(name, image,
+        config.createFeatureDetector(), config.createDescriptorExtractor(),
+        scaleLevels, config.getKeypointBudget());
+    try {
+      cache.write(cacheKey, target.getKeypoints(), target.getDescriptors());
+    } catch(IOException e) {
+      Log.e(TAG, "Failed to cache features of " + name, e);
+    }
+    return target;
+  }
+  
+  public ReferenceCache(final File dir, final long stamp) {
+    mFiles = new StampedFileCache(dir, ".bin", MAGIC, VERSION, stamp);
+  }
+  
+  // The key names the image and every setting the features depend on
+  public boolean read(final String key, final MatOfKeyPoint keypoints,
+      final Mat descriptors) {
+    return mFiles.read(key, new StampedFileCache.Reader<Boolean>() {
+      @Override
+      public Boolean read(final ByteBuffer buffer) {
+        final int keypointCount = buffer.getInt();
+        final float[] keypointData =
+            new float[keypointCount * ReferenceTarget.KEYPOINT_FIELDS];
+        buffer.asFloatBuffer().get(keypointData);
+        buffer.position(buffer.position() + 4 * keypointData.length);
+        
+        final int descriptorRows = buffer.getInt();
+        final int descriptorCols = buffer.getInt();
+        final int descriptorType = buffer.getInt();
+        if(descriptorType != CvType.CV_8UC1) {
+          return null;
+        }
+        final byte[] descriptorData =
+            new byte[descriptorRows * descriptorCols];
+        buffer.get(descriptorData);
+        
+        keypoints.create(keypointCount, 1,
+            CvType.CV_32FC(ReferenceTarget.KEYPOINT_FIELDS));
+        keypoints.put(0, 0, keypointData);
+        descriptors.create(descriptorRows, descriptorCols, descriptorType);
+        descriptors.put(0, 0, descriptorData);
+        return Boolean.TRUE;
+      }
+    }) != null;
+  }
+  
+  public void write(final String key, final MatOfKeyPoint keypoints,
+      final Mat descriptors) throws IOException {
+    if(descriptors.type() != CvType.CV_8UC1) {
+      // Only binary descriptors are cached
+      return;
+    }
+    final int keypointCount = (int)keypoints.total();
+    final float[] keypointData =
+        new float[keypointCount * ReferenceTarget.KEYPOINT_FIELDS];
+    keypoints.get(0, 0, keypointData);
+    final byte[] descriptorData =
+        new byte[descriptors.rows() * descriptors.cols()];
+    descriptors.get(0, 0, descriptorData);
+    
+    mFiles.write(key, new StampedFileCache.Writer() {
+      @Override
+      public void write(final DataOutputStream output) throws IOException {
+        output.writeInt(keypointCount);
+        for(final float value : keypointData) {
+          output.writeFloat(value);
+        }
+        output.writeInt(descriptors.rows());
+        output.writeInt(descriptors.cols());
+        output.writeInt(descriptors.type());
+        output.write(descriptorData);
+      }
+    });
+  }
+}
@@ -0,0 +1,126 @@
+package com.tutorials.secondsight.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+import android.content.pm.PackageManager.NameNotFoundException;
+
+// Keeps each entry in a file named by a hash of its key. The file starts
+// with the cache's magic number and version, a stamp and the whole key,
+// and an entry whose header does not match is treated as missing.
+public class StampedFileCache {
+  public interface Reader<T> {
+    // Reads the rest of an entry; returns null if it is not valid. Reading
+    // past the end counts as a truncated entry.
+    T read(ByteBuffer buffer);
+  }
+  
+  public interface Writer {
+    void write(DataOutputStream output) throws IOException;
+  }
+  
+  private final File mDir;
+  private final String mExtension;
+  private final int mMagic;
+  private final int mVersion;
+  private final long mStamp;
+  
+  public StampedFileCache(final File dir, final String extension,
+      final int magic, final int version, final long stamp) {
+    mDir = dir;
+    mExtension = extension;
+    mMagic = magic;
+    mVersion = version;
+    mStamp = stamp;
+  }
+  
+  // A stamp that changes whenever the app, and so its resources and the
+  // code that derives entries from them, is updated
+  public static long getInstallStamp(final Context ctx) {
+    try {
+      return ctx.getPackageManager().getPackageInfo(
+          ctx.getPackageName(), 0).lastUpdateTime;
+    } catch(NameNotFoundException e) {
+      return 0;
+    }
+  }
+  
+  private File getFile(final String key) {
+    return new File(mDir, Integer.toHexString(key.hashCode()) + mExtension);
+  }
+  
+  // Maps the entry's file; returns null if the entry is missing, stale or
+  // invalid
+  public <T> T read(final String key, final Reader<T> reader) {
+    final File file = getFile(key);
+    if(!file.isFile()) {
+      return null;
+    }
+    FileInputStream input = null;
+    try {
+      input = new FileInputStream(file);
+      final FileChannel channel = input.getChannel();
+      final MappedByteBuffer buffer =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if(buffer.getInt() != mMagic || buffer.getInt() != mVersion ||
+          buffer.getLong() != mStamp) {
+        return null;
+      }
+      final char[] storedKey = new char[buffer.getInt()];
+      buffer.asCharBuffer().get(storedKey);
+      buffer.position(buffer.position() + 2 * storedKey.length);
+      if(!key.equals(new String(storedKey))) {
+        // Hash collision
+        return null;
+      }
+      return reader.read(buffer);
+    } catch(IOException e) {
+      return null;
+    } catch(BufferUnderflowException e) {
+      // Truncated file
+      return null;
+    } finally {
+      if(input != null) {
+        try {
+          input.close();
+        } catch(IOException e) {
+        }
+      }
+    }
+  }
+  
+  public void write(final String key, final Writer writer)
+      throws IOException {
+    if(!mDir.isDirectory() && !mDir.mkdirs()) {
+      throw new IOException("Failed to create " + mDir);
+    }
+    // Write to a temporary file so readers never see a partial entry
+    final File file = getFile(key);
+    final File tmpFile = new File(mDir, file.getName() + ".tmp");
+    final DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmpFile)));
+    try {
+      output.writeInt(mMagic);
+      output.writeInt(mVersion);
+      output.writeLong(mStamp);
+      output.writeInt(key.length());
+      output.writeChars(key);
+      writer.write(output);
+    } finally {
+      output.close();
+    }
+    if(!tmpFile.renameTo(file)) {
+      tmpFile.delete();
+      throw new IOException("Failed to write " + file);
+    }
+  }
+}
@@ -0,0 +1,251 @@
+package com.tutorials.secondsight.capture;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Environment;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Images;
+import android.util.Log;
+
+// Saves frames on background threads. The capturing thread only copies
+// each frame into one of a fixed pool of buffers; when every buffer is
+// waiting to be encoded, frames are refused rather than queued.
+public class PhotoEncoder {
+  private static final String TAG = "PhotoEncoder";
+  
+  public static final int FORMAT_JPEG = 0;
+  public static final int FORMAT_PNG = 1;
+  public static final String JPEG_MIME_TYPE = "image/jpeg";
+  public static final String PNG_MIME_TYPE = "image/png";
+  private static final int JPEG_QUALITY = 95;
+  // Low compression; the files are larger but encode several times faster
+  private static final int PNG_COMPRESSION = 1;
+  
+  public interface Listener {
+    // Both are called on an encoder thread. uri is null for frames of a
+    // sequence, which are not added to the gallery.
+    void onPhotoSaved(Uri uri, String path, String mimeType);
+    void onPhotoFailed();
+  }
+  
+  private static class Job {
+    final Mat mFrame;
+    final int mFormat;
+    final long mTimeMillis;
+    final File mFile;
+    final boolean mIsInGallery;
+    final Listener mListener;
+    
+    Job(final Mat frame, final int format, final long timeMillis,
+        final File file, final boolean isInGallery,
+        final Listener listener) {
+      mFrame = frame;
+      mFormat = format;
+      mTimeMillis = timeMillis;
+      mFile = file;
+      mIsInGallery = isInGallery;
+      mListener = listener;
+    }
+  }
+  
+  // Tells an encoder thread to exit once earlier jobs are done
+  private static final Job END_OF_JOBS = new Job(null, 0, 0, null, false,
+    null);
+  
+  private final ContentResolver mContentResolver;
+  private final String mAlbumName;
+  private final int mPoolSize;
+  private final BlockingQueue<Mat> mFreeFrames;
+  private final BlockingQueue<Job> mJobs;
+  private final Thread[] mThreads;
+  private final AtomicLong mRefusedCount = new AtomicLong();
+  private final AtomicInteger mRunningThreadCount;
+  // Numbers the gallery photos, which can be taken in the same millisecond
+  private final AtomicInteger mPhotoCount = new AtomicInteger();
+  
+  // Up to poolSize frames may wait for threadCount encoder threads
+  public PhotoEncoder(final ContentResolver contentResolver,
+      final String albumName, final int poolSize, final int threadCount) {
+    mContentResolver = contentResolver;
+    mAlbumName = albumName;
+    mPoolSize = poolSize;
+    mFreeFrames = new ArrayBlockingQueue<Mat>(poolSize);
+    mJobs = new ArrayBlockingQueue<Job>(poolSize + threadCount);
+    for(int i = 0; i < poolSize; i++) {
+      mFreeFrames.add(new Mat());
+    }
+    mRunningThreadCount = new AtomicInteger(threadCount);
+    mThreads = new Thread[threadCount];
+    for(int i = 0; i < threadCount; i++) {
+      mThreads[i] = new Thread(TAG + "-" + i) {
+        @Override
+        public void run() {
+          encodeJobs();
+        }
+      };
+      mThreads[i].start();
+    }
+  }
+  
+  // Allocates the free buffers up front, so the first captures at a new
+  // frame size do not pay for it
+  public void preallocate(final int width, final int height) {
+    final Mat[] frames = new Mat[mPoolSize];
+    int count = 0;
+    Mat frame;
+    while(count < frames.length && (frame = mFreeFrames.poll()) != null) {
+      frame.create(height, width, CvType.CV_8UC4);
+      frames[count++] = frame;
+    }
+    for(int i = 0; i < count; i++) {
+      mFreeFrames.add(frames[i]);
+    }
+  }
+  
+  public File getAlbumDir() {
+    return new File(Environment.getExternalStoragePublicDirectory(
+        Environment.DIRECTORY_PICTURES), mAlbumName);
+  }
+  
+  // Saves a photo to the album and adds it to the gallery. Called on the
+  // capturing thread; returns false, without blocking, if every buffer
+  // is still waiting to be encoded.
+  public boolean capture(final Mat rgba, final int format,
+      final Listener listener) {
+    final long timeMillis = System.currentTimeMillis();
+    final String name = String.format(Locale.US, "%d_%04d%s", timeMillis,
+        mPhotoCount.getAndIncrement(), getExtension(format));
+    return enqueue(rgba, format, timeMillis, new File(getAlbumDir(), name),
+        true, listener);
+  }
+  
+  // Saves frame number index of an image sequence in dir
+  public boolean captureSequenceFrame(final Mat rgba, final int format,
+      final File dir, final int index, final Listener listener) {
+    return enqueue(rgba, format, System.currentTimeMillis(),
+        new File(dir, String.format(Locale.US, "frame_%06d%s", index,
+            getExtension(format))), false, listener);
+  }
+  
+  // Frames waiting for or being encoded
+  public int getPendingCount() {
+    return mPoolSize - mFreeFrames.size();
+  }
+  
+  // Captures refused because the pool was exhausted
+  public long getRefusedCount() {
+    return mRefusedCount.get();
+  }
+  
+  // Encodes the frames already captured, then stops the encoder threads
+  // and frees the buffers. Nothing may be captured afterwards.
+  public void shutdown() {
+    for(int i = 0; i < mThreads.length; i++) {
+      mJobs.add(END_OF_JOBS);
+    }
+  }
+  
+  private boolean enqueue(final Mat rgba, final int format,
+      final long timeMillis, final File file, final boolean isInGallery,
+      final Listener listener) {
+    final Mat frame = mFreeFrames.poll();
+    if(frame == null) {
+      mRefusedCount.incrementAndGet();
+      return false;
+    }
+    rgba.copyTo(frame);
+    mJobs.add(new Job(frame, format, timeMillis, file, isInGallery,
+        listener));
+    return true;
+  }
+  
+  private static String getExtension(final int format) {
+    return format == FORMAT_JPEG ? ".jpg" : ".png";
+  }
+  
+  private void encodeJobs() {
+    final Mat bgr = new Mat();
+    final MatOfInt jpegParams =
+        new MatOfInt(Highgui.CV_IMWRITE_JPEG_QUALITY, JPEG_QUALITY);
+    final MatOfInt pngParams =
+        new MatOfInt(Highgui.CV_IMWRITE_PNG_COMPRESSION, PNG_COMPRESSION);
+    try {
+      while(true) {
+        final Job job = mJobs.take();
+        if(job == END_OF_JOBS) {
+          break;
+        }
+        Imgproc.cvtColor(job.mFrame, bgr, Imgproc.COLOR_RGBA2BGR, 3);
+        mFreeFrames.add(job.mFrame);
+        encode(job, bgr,
+            job.mFormat == FORMAT_JPEG ? jpegParams : pngParams);
+      }
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    bgr.release();
+    jpegParams.release();
+    pngParams.release();
+    if(mRunningThreadCount.decrementAndGet() == 0) {
+      // Every job has handed its frame back
+      Mat frame;
+      while((frame = mFreeFrames.poll()) != null) {
+        frame.release();
+      }
+    }
+  }
+  
+  private void encode(final Job job, final Mat bgr, final MatOfInt params) {
+    final String mimeType =
+        job.mFormat == FORMAT_JPEG ? JPEG_MIME_TYPE : PNG_MIME_TYPE;
+    final File dir = job.mFile.getParentFile();
+    if(!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+      Log.e(TAG, "Failed to create directory at " + dir);
+      job.mListener.onPhotoFailed();
+      return;
+    }
+    final String path = job.mFile.getPath();
+    if(!Highgui.imwrite(path, bgr, params)) {
+      Log.e(TAG, "Failed to save photo to " + path);
+      job.mListener.onPhotoFailed();
+      return;
+    }
+    if(!job.mIsInGallery) {
+      job.mListener.onPhotoSaved(null, path, mimeType);
+      return;
+    }
+    
+    final ContentValues values = new ContentValues();
+    values.put(MediaStore.MediaColumns.DATA, path);
+    values.put(Images.Media.MIME_TYPE, mimeType);
+    values.put(Images.Media.TITLE, mAlbumName);
+    values.put(Images.Media.DESCRIPTION, mAlbumName);
+    values.put(Images.Media.DATE_TAKEN, job.mTimeMillis);
+    final Uri uri;
+    try {
+      uri = mContentResolver.insert(Images.Media.EXTERNAL_CONTENT_URI,
+          values);
+    } catch(Exception e) {
+      if(!job.mFile.delete()) {
+        Log.e(TAG, "Failed to delete non-inserted photo");
+      }
+      job.mListener.onPhotoFailed();
+      return;
+    }
+    job.mListener.onPhotoSaved(uri, path, mimeType);
+  }
+}
@@ -0,0 +1,150 @@
+package com.tutorials.secondsight.filters;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+// Splits frames into a grid of tiles and reports which tiles differ from
+// the last time they were reported, by comparing every channel of a small
+// thumbnail, so a change of hue counts as well as one of brightness. Slow
+// drift is caught because each tile is compared with the frame it last
+// changed in, not with the previous frame.
+public class ChangeDetector {
+  // Each tile is compared as a square of this many averaged cells a side
+  private static final int CELLS_PER_TILE = 4;
+  // Difference of a cell in any channel that counts as a change, chosen
+  // to ignore sensor noise once it is averaged over a cell
+  public static final int DEFAULT_THRESHOLD = 8;
+  
+  private final int mTileCols;
+  private final int mTileRows;
+  private final int mThreshold;
+  private final Size mThumbnailSize;
+  private final Mat mThumbnail = new Mat();
+  private byte[] mCurrent = new byte[0];
+  private byte[] mReference = new byte[0];
+  private int mChannels;
+  private final boolean[] mChangedTiles;
+  private int mChangedTileCount;
+  private int mFrameRows;
+  private int mFrameCols;
+  private boolean mIsReset = true;
+  
+  public ChangeDetector(final int tileCols, final int tileRows) {
+    this(tileCols, tileRows, DEFAULT_THRESHOLD);
+  }
+  
+  public ChangeDetector(final int tileCols, final int tileRows,
+      final int threshold) {
+    if(tileCols < 1 || tileRows < 1) {
+      throw new IllegalArgumentException(
+          "Invalid tile grid: " + tileCols + "x" + tileRows);
+    }
+    mTileCols = tileCols;
+    mTileRows = tileRows;
+    mThreshold = threshold;
+    mThumbnailSize = new Size(tileCols * CELLS_PER_TILE,
+        tileRows * CELLS_PER_TILE);
+    mChangedTiles = new boolean[tileCols * tileRows];
+  }
+  
+  public int getTileCols() {
+    return mTileCols;
+  }
+  
+  public int getTileRows() {
+    return mTileRows;
+  }
+  
+  // Reports every tile as changed on the next update
+  public void reset() {
+    mIsReset = true;
+  }
+  
+  // Compares an RGBA frame with the reported state of each tile; returns
+  // whether any tile changed
+  public boolean update(final Mat rgba) {
+    final int channels = rgba.channels();
+    final int thumbnailCols = mTileCols * CELLS_PER_TILE;
+    Imgproc.resize(rgba, mThumbnail, mThumbnailSize, 0, 0,
+        Imgproc.INTER_AREA);
+    final int length = mTileRows * CELLS_PER_TILE * thumbnailCols * channels;
+    if(mCurrent.length != length) {
+      mCurrent = new byte[length];
+      mReference = new byte[length];
+    }
+    mThumbnail.get(0, 0, mCurrent);
+    
+    if(mIsReset || rgba.rows() != mFrameRows || rgba.cols() != mFrameCols ||
+        channels != mChannels) {
+      mIsReset = false;
+      mChannels = channels;
+      mFrameRows = rgba.rows();
+      mFrameCols = rgba.cols();
+      System.arraycopy(mCurrent, 0, mReference, 0, mCurrent.length);
+      for(int i = 0; i < mChangedTiles.length; i++) {
+        mChangedTiles[i] = true;
+      }
+      mChangedTileCount = mChangedTiles.length;
+      return true;
+    }
+    
+    mChangedTileCount = 0;
+    for(int ty = 0; ty < mTileRows; ty++) {
+      for(int tx = 0; tx < mTileCols; tx++) {
+        final boolean isChanged =
+            differsFromReference(tx, ty, thumbnailCols * channels);
+        mChangedTiles[ty * mTileCols + tx] = isChanged;
+        if(isChanged) {
+          mChangedTileCount++;
+          // The caller refreshes the tile, so later frames compare to this
+          for(int cy = 0; cy < CELLS_PER_TILE; cy++) {
+            final int start = ((ty * CELLS_PER_TILE + cy) * thumbnailCols +
+                tx * CELLS_PER_TILE) * channels;
+            System.arraycopy(mCurrent, start, mReference, start,
+                CELLS_PER_TILE * channels);
+          }
+        }
+      }
+    }
+    return mChangedTileCount > 0;
+  }
+  
+  private boolean differsFromReference(final int tx, final int ty,
+      final int rowLength) {
+    final int tileRowLength = CELLS_PER_TILE * mChannels;
+    for(int cy = 0; cy < CELLS_PER_TILE; cy++) {
+      final int start = (ty * CELLS_PER_TILE + cy) * rowLength +
+          tx * tileRowLength;
+      for(int i = start; i < start + tileRowLength; i++) {
+        if(Math.abs((mCurrent[i] & 0xff) - (mReference[i] & 0xff)) >
+            mThreshold) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+  
+  // Results of the last update
+  public boolean isTileChanged(final int tx, final int ty) {
+    return mChangedTiles[ty * mTileCols + tx];
+  }
+  
+  public int getChangedTileCount() {
+    return mChangedTileCount;
+  }
+  
+  public boolean isEveryTileChanged() {
+    return mChangedTileCount == mChangedTiles.length;
+  }
+  
+  // Bounds of a tile in a frame of the last updated size
+  public int getTileLeft(final int tx) {
+    return mFrameCols * tx / mTileCols;
+  }
+  
+  public int getTileTop(final int ty) {
+    return mFrameRows * ty / mTileRows;
+  }
+}
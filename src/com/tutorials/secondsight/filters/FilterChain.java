@@ -0,0 +1,76 @@
+package com.tutorials.secondsight.filters;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Mat;
+
+public class FilterChain implements Filter {
+  private volatile Filter[] mStages = new Filter[0];
+  private boolean mIsParallel;
+  
+  public FilterChain(final Filter... filters) {
+    setFilters(filters);
+  }
+  
+  // Runs pointwise stages in parallel stripes from the next setFilters()
+  public void setParallel(final boolean isParallel) {
+    mIsParallel = isParallel;
+  }
+  
+  public void setFilters(final Filter... filters) {
+    final List<Filter> stages = new ArrayList<Filter>(filters.length);
+    final List<PointwiseFilter> pointwiseRun =
+        new ArrayList<PointwiseFilter>(filters.length);
+    for(final Filter filter : filters) {
+      if(filter == null || filter instanceof NoneFilter) {
+        continue;
+      }
+      if(filter instanceof PointwiseFilter) {
+        pointwiseRun.add((PointwiseFilter)filter);
+        continue;
+      }
+      addPointwiseStage(stages, pointwiseRun, mIsParallel);
+      stages.add(filter);
+    }
+    addPointwiseStage(stages, pointwiseRun, mIsParallel);
+    mStages = stages.toArray(new Filter[stages.size()]);
+  }
+  
+  private static void addPointwiseStage(final List<Filter> stages,
+      final List<PointwiseFilter> pointwiseRun, final boolean isParallel) {
+    if(isParallel && !pointwiseRun.isEmpty()) {
+      final PointwiseFilter[] run =
+          pointwiseRun.toArray(new PointwiseFilter[pointwiseRun.size()]);
+      // Each stripe needs its own band buffer
+      stages.add(new ParallelFilter(new ParallelFilter.Factory() {
+        @Override
+        public Filter create() {
+          return new FusedPointwiseFilter(run);
+        }
+      }, 0));
+    } else if(pointwiseRun.size() == 1) {
+      // A lone stage is cheaper in its own native implementation
+      stages.add(pointwiseRun.get(0));
+    } else if(pointwiseRun.size() > 1) {
+      stages.add(new FusedPointwiseFilter(pointwiseRun.toArray(
+          new PointwiseFilter[pointwiseRun.size()])));
+    }
+    pointwiseRun.clear();
+  }
+  
+  @Override
+  public void apply(final Mat src, final Mat dst) {
+    final Filter[] stages = mStages;
+    if(stages.length == 0) {
+      if(dst != src) {
+        src.copyTo(dst);
+      }
+      return;
+    }
+    stages[0].apply(src, dst);
+    for(int i = 1; i < stages.length; i++) {
+      stages[i].apply(dst, dst);
+    }
+  }
+}
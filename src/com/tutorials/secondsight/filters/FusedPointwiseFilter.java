@@ -0,0 +1,44 @@
+package com.tutorials.secondsight.filters;
+
+import org.opencv.core.Mat;
+
+public class FusedPointwiseFilter implements PointwiseFilter {
+  // Small enough for a band of rows to stay in cache between stages
+  private static final int BAND_BYTES = 32 * 1024;
+  
+  private final PointwiseFilter[] mStages;
+  private byte[] mBand = new byte[0];
+  
+  public FusedPointwiseFilter(final PointwiseFilter... stages) {
+    mStages = stages.clone();
+  }
+  
+  @Override
+  public void applyPixels(final byte[] rgba, final int length) {
+    for(int i = 0; i < mStages.length; i++) {
+      mStages[i].applyPixels(rgba, length);
+    }
+  }
+  
+  @Override
+  public void apply(final Mat src, final Mat dst) {
+    if(dst != src) {
+      dst.create(src.size(), src.type());
+    }
+    final int rows = src.rows();
+    final int rowBytes = src.cols() * src.channels();
+    if(rowBytes == 0) {
+      return;
+    }
+    final int bandRows = Math.max(1, BAND_BYTES / rowBytes);
+    if(mBand.length != bandRows * rowBytes) {
+      mBand = new byte[bandRows * rowBytes];
+    }
+    for(int row = 0; row < rows; row += bandRows) {
+      final int length = Math.min(bandRows, rows - row) * rowBytes;
+      src.get(row, 0, mBand);
+      applyPixels(mBand, length);
+      dst.put(row, 0, mBand);
+    }
+  }
+}
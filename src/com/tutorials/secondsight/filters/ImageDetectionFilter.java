@@ -1,35 +1,50 @@
 package com.tutorials.secondsight.filters;
 
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-
-import org.opencv.android.Utils;
 import org.opencv.calib3d.Calib3d;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
 import org.opencv.core.MatOfKeyPoint;
 import org.opencv.core.MatOfPoint;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
 import org.opencv.core.Scalar;
-import org.opencv.features2d.DMatch;
+import org.opencv.core.Size;
 import org.opencv.features2d.DescriptorExtractor;
-import org.opencv.features2d.DescriptorMatcher;
 import org.opencv.features2d.FeatureDetector;
-import org.opencv.features2d.KeyPoint;
-import org.opencv.highgui.Highgui;
 import org.opencv.imgproc.Imgproc;
+import org.opencv.video.Video;
 
-import android.content.Context;
+import com.tutorials.secondsight.filters.detection.CornerSmoother;
+import com.tutorials.secondsight.filters.detection.DetectionConfig;
+import com.tutorials.secondsight.filters.detection.KeypointSelector;
+import com.tutorials.secondsight.filters.detection.RatioTestMatcher;
+import com.tutorials.secondsight.filters.detection.ReferenceTarget;
+import com.tutorials.secondsight.metrics.FrameMetrics;
 
 public class ImageDetectionFilter implements Filter {
+  // Tracking stops when fewer of the points found by detection survive
+  private static final double MIN_TRACKED_FRACTION = 0.5;
+  private static final int MIN_TRACKED_POINTS = 8;
+  // The previous homography is refined without RANSAC when it still fits
+  // this share of the new matches
+  private static final double MIN_PREDICTED_INLIER_FRACTION = 0.8;
+  // Frames the corners keep moving on their own when a measurement fails
+  private static final int MAX_COASTED_FRAMES = 3;
+  // Once found, the target is searched for in its last bounding box grown
+  // by this share of its size plus a margin in pixels on each side
+  private static final double SEARCH_PADDING = 0.25;
+  private static final double MIN_SEARCH_PADDING = 16;
+  // A larger search region is not worth cropping to
+  private static final double MAX_SEARCH_AREA_FRACTION = 0.8;
+  // Failed region searches before the whole frame is searched again
+  private static final int MAX_REGION_MISSES = 3;
+  
   private final Mat mReferenceImage;
-  private final MatOfKeyPoint mReferenceKeypoints = new MatOfKeyPoint();
-  private final Mat mReferenceDescriptors = new Mat();
-  private final Mat mReferenceCorners = new Mat(4, 1, CvType.CV_32FC2);
+  private final Mat mReferenceDescriptors;
+  private final Mat mReferenceCorners;
   
   private final MatOfKeyPoint mSceneKeypoints = new MatOfKeyPoint();
   private final Mat mSceneDescriptors = new Mat();
@@ -37,104 +52,519 @@ public class ImageDetectionFilter implements Filter {
   private final Mat mSceneCorners = new Mat(4, 1, CvType.CV_32FC2);
   private final MatOfPoint mIntSceneCorners = new MatOfPoint();
   
-  private final Mat mGraySrc = new Mat();
-  private final MatOfDMatch mMatches = new MatOfDMatch();
+  // Detection runs on a copy of the frame scaled to at most
+  // mDetectionHeight rows; all geometry is kept at that scale
+  private volatile int mDetectionHeight;
+  private double mDetectionScale = 1;
+  private final Size mDetectionSize = new Size();
+  private final MatPool mPool = MatPool.getShared();
+  private final float[] mDrawCorners = new float[8];
+  private Mat mGraySrc = new Mat();
+  private Mat mPrevGraySrc = new Mat();
+  private final MatOfPoint2f mGoodReferencePoints = new MatOfPoint2f();
+  private final MatOfPoint2f mGoodScenePoints = new MatOfPoint2f();
+  private final float[] mReferenceKeypointCoords;
+  private float[] mSceneKeypointData = new float[0];
+  
+  // Scene points followed by optical flow between full detections, and
+  // the reference points they correspond to
+  private final MatOfPoint2f mTrackedScenePoints = new MatOfPoint2f();
+  private final MatOfPoint2f mTrackedReferencePoints = new MatOfPoint2f();
+  private final MatOfPoint2f mFlowScenePoints = new MatOfPoint2f();
+  private final MatOfByte mFlowStatus = new MatOfByte();
+  private final MatOfFloat mFlowError = new MatOfFloat();
+  private float[] mSceneCoords = new float[0];
+  private float[] mReferenceCoords = new float[0];
+  private byte[] mStatus = new byte[0];
+  private int mDetectedPointCount;
+  private boolean mIsTracking;
+  private int mFramesSinceDetection;
+  private volatile int mRedetectionInterval;
+  
+  private final double[] mHomography = new double[9];
+  private boolean mHasHomography;
+  private final CornerSmoother mCornerSmoother =
+    new CornerSmoother(0.5f, 0.1f, 40f);
+  private final float[] mCornerData = new float[8];
+  private boolean mHasFreshCorners;
+  private int mCoastedFrames;
   
-  private final FeatureDetector mFeatureDetector =
-    FeatureDetector.create(FeatureDetector.STAR);
-  private final DescriptorExtractor mDescriptorExtractor =
-    DescriptorExtractor.create(DescriptorExtractor.FREAK);
-  private final DescriptorMatcher mDescriptorMatcher =
-    DescriptorMatcher.create(DescriptorMatcher.BRUTEFORCE_HAMMING);
+  // The part of the detection-scale frame that the last detection searched
+  private final float[] mSearchCorners = new float[8];
+  private int mSearchLeft;
+  private int mSearchTop;
+  private int mSearchRight;
+  private int mSearchBottom;
+  private int mRegionMissCount;
   
-  List<Point> mDebug;
+  // Statistics of the last full detection; all 0 after a tracked frame
+  private int mKeypointCount;
+  private int mMatchCount;
+  private int mInlierCount;
+  private volatile FrameMetrics mMetrics;
+  private volatile ChangeDetector mChangeDetector;
+  
+  private final FeatureDetector mFeatureDetector;
+  private final KeypointSelector mKeypointSelector = new KeypointSelector();
+  private volatile int mKeypointBudget;
+  private final DescriptorExtractor mDescriptorExtractor;
+  private final RatioTestMatcher mDescriptorMatcher;
+  private final double mReprojectionThreshold;
+  private final float mAbsentDistance;
+  private final float mUncertainDistance;
   
   private final Scalar mLineColor = new Scalar(0, 255, 0);
+  private final Point mLineStart = new Point();
+  private final Point mLineEnd = new Point();
   
-  public ImageDetectionFilter(final Context ctx,
-      final int referenceImageResourceID) throws IOException {
-    mReferenceImage = Utils.loadResource(ctx, referenceImageResourceID,
-        Highgui.CV_LOAD_IMAGE_COLOR);
-    final Mat referenceImageGray = new Mat();
-    Imgproc.cvtColor(mReferenceImage, referenceImageGray, Imgproc.COLOR_BGR2GRAY);
-    Imgproc.cvtColor(mReferenceImage, mReferenceImage, Imgproc.COLOR_BGR2RGBA);
-    
-    mReferenceCorners.put(0, 0, new double[] {0, 0});
-    mReferenceCorners.put(1, 0, new double[] {referenceImageGray.cols(), 0});
-    mReferenceCorners.put(2, 0,
-        new double[] {referenceImageGray.cols(), referenceImageGray.rows()});
-    mReferenceCorners.put(3, 0, new double[] {0, referenceImageGray.rows()});
-    
-    mFeatureDetector.detect(referenceImageGray, mReferenceKeypoints);
-    mDescriptorExtractor.compute(referenceImageGray,
-        mReferenceKeypoints, mReferenceDescriptors);
+  // Between full detections, up to redetectionInterval frames follow
+  // the target with optical flow; 0 disables tracking
+  public ImageDetectionFilter(final ReferenceTarget target,
+      final int redetectionInterval) {
+    this(target, redetectionInterval, 0);
+  }
+  
+  // The target's features must come from STAR and FREAK. Frames taller
+  // than detectionHeight are scaled down before detection; 0 disables
+  // scaling.
+  public ImageDetectionFilter(final ReferenceTarget target,
+      final int redetectionInterval, final int detectionHeight) {
+    this(target, DetectionConfig.STAR_FREAK, redetectionInterval,
+        detectionHeight);
+  }
+  
+  // The target's features must come from the config's detector and
+  // extractor
+  public ImageDetectionFilter(final ReferenceTarget target,
+      final DetectionConfig config, final int redetectionInterval,
+      final int detectionHeight) {
+    mFeatureDetector = config.createFeatureDetector();
+    mKeypointBudget = config.getKeypointBudget();
+    mDescriptorExtractor = config.createDescriptorExtractor();
+    mDescriptorMatcher = config.createRatioTestMatcher();
+    mReprojectionThreshold = config.getReprojectionThreshold();
+    mAbsentDistance = config.getAbsentDistance();
+    mUncertainDistance = config.getUncertainDistance();
+    mRedetectionInterval = redetectionInterval;
+    mDetectionHeight = detectionHeight;
+    mReferenceImage = target.getImage();
+    mReferenceDescriptors = target.getDescriptors();
+    mReferenceCorners = target.getCorners();
+    mReferenceKeypointCoords = target.getKeypointCoords();
+  }
+  
+  // Takes effect from the next frame; may be called on any thread
+  public void setDetectionHeight(final int detectionHeight) {
+    mDetectionHeight = detectionHeight;
+  }
+  
+  public int getDetectionHeight() {
+    return mDetectionHeight;
+  }
+  
+  // Takes effect from the next frame; may be called on any thread
+  public void setRedetectionInterval(final int redetectionInterval) {
+    mRedetectionInterval = redetectionInterval;
+  }
+  
+  public int getRedetectionInterval() {
+    return mRedetectionInterval;
+  }
+  
+  // Caps the scene keypoints that are described and matched, which bounds
+  // the cost of matching; 0 removes the cap. Takes effect from the next
+  // frame; may be called on any thread.
+  public void setKeypointBudget(final int keypointBudget) {
+    mKeypointBudget = keypointBudget;
+  }
+  
+  public int getKeypointBudget() {
+    return mKeypointBudget;
+  }
+  
+  // Records detection statistics for every frame from now on
+  public void setMetrics(final FrameMetrics metrics) {
+    mMetrics = metrics;
+  }
+  
+  public int getKeypointCount() {
+    return mKeypointCount;
+  }
+  
+  public int getMatchCount() {
+    return mMatchCount;
+  }
+  
+  public int getInlierCount() {
+    return mInlierCount;
+  }
+  
+  public boolean isTargetFound() {
+    return mSceneCorners.height() >= 4;
+  }
+  
+  // Copies the target's corners in frame coordinates, clockwise from the
+  // reference image's top left, and returns whether it was found
+  public boolean getSceneCorners(final float[] corners) {
+    if(!isTargetFound()) {
+      return false;
+    }
+    mSceneCorners.get(0, 0, corners);
+    for(int i = 0; i < 8; i++) {
+      corners[i] /= mDetectionScale;
+    }
+    return true;
+  }
+  
+  // Forgets the target, so that the next frame is searched from scratch;
+  // must not be called while a frame is being filtered
+  public void reset() {
+    mIsTracking = false;
+    mHasHomography = false;
+    mCornerSmoother.reset();
+    mSceneCorners.create(0, 0, mSceneCorners.type());
+    mCoastedFrames = 0;
+    mRegionMissCount = 0;
+    final ChangeDetector changeDetector = mChangeDetector;
+    if(changeDetector != null) {
+      changeDetector.reset();
+    }
+  }
+  
+  // Keeps the last result instead of detecting again while the detector
+  // finds no change, or detects in every frame if it is null. The
+  // detector must not be shared with another filter.
+  public void setChangeDetector(final ChangeDetector changeDetector) {
+    mChangeDetector = changeDetector;
   }
   
   @Override
   public void apply(Mat src, Mat dst) {
-    Imgproc.cvtColor(src, mGraySrc, Imgproc.COLOR_RGBA2GRAY);
-    mFeatureDetector.detect(mGraySrc, mSceneKeypoints);
-    mDescriptorExtractor.compute(mGraySrc, mSceneKeypoints, mSceneDescriptors);
-    mDescriptorMatcher.match(mSceneDescriptors, mReferenceDescriptors,
-        mMatches);
-    findSceneCorners();
+    final int detectionHeight = mDetectionHeight;
+    final double prevDetectionScale = mDetectionScale;
+    double detectionScale = 1;
+    if(detectionHeight > 0 && src.rows() > detectionHeight) {
+      detectionScale = detectionHeight / (double)src.rows();
+    }
+    final ChangeDetector changeDetector = mChangeDetector;
+    if(changeDetector != null && !changeDetector.update(src) &&
+        detectionScale == prevDetectionScale) {
+      // A static scene gives the same corners as the last frame did
+      mKeypointCount = 0;
+      mMatchCount = 0;
+      mInlierCount = 0;
+      recordMetrics();
+      draw(src, dst);
+      return;
+    }
+    mDetectionScale = detectionScale;
+    if(detectionScale < 1) {
+      mDetectionSize.width =
+          Math.max(1, Math.round(src.cols() * mDetectionScale));
+      mDetectionSize.height = detectionHeight;
+      final Mat smallSrc = mPool.lease(detectionHeight,
+          (int)mDetectionSize.width, src.type());
+      try {
+        Imgproc.resize(src, smallSrc, mDetectionSize, 0, 0,
+            Imgproc.INTER_AREA);
+        Imgproc.cvtColor(smallSrc, mGraySrc, Imgproc.COLOR_RGBA2GRAY);
+      } finally {
+        mPool.release(smallSrc);
+      }
+    } else {
+      Imgproc.cvtColor(src, mGraySrc, Imgproc.COLOR_RGBA2GRAY);
+    }
+    if(mDetectionScale != prevDetectionScale) {
+      // The previous frame's points and gray image are at the old scale
+      mIsTracking = false;
+      mHasHomography = false;
+      mCornerSmoother.reset();
+      mSceneCorners.create(0, 0, mSceneCorners.type());
+    }
+    mHasFreshCorners = false;
+    mKeypointCount = 0;
+    mMatchCount = 0;
+    mInlierCount = 0;
+    if(mIsTracking && mFramesSinceDetection < mRedetectionInterval &&
+        trackSceneCorners()) {
+      mFramesSinceDetection++;
+    } else {
+      mIsTracking = false;
+      mFramesSinceDetection = 0;
+      detectSceneCorners();
+    }
+    if(!mHasFreshCorners) {
+      coastSceneCorners();
+    }
+    recordMetrics();
+    final Mat prevGraySrc = mPrevGraySrc;
+    mPrevGraySrc = mGraySrc;
+    mGraySrc = prevGraySrc;
     draw(src, dst);
   }
   
+  private void recordMetrics() {
+    final FrameMetrics metrics = mMetrics;
+    if(metrics != null) {
+      metrics.recordDetection(isTargetFound(), mKeypointCount, mMatchCount,
+          mInlierCount);
+    }
+  }
+  
+  // Searches around the last known quad while the target is found, and
+  // the whole frame otherwise
+  private void detectSceneCorners() {
+    final boolean isRegionSearch = isTargetFound() &&
+        mRegionMissCount < MAX_REGION_MISSES && setSearchRegion();
+    final int keypointBudget = mKeypointBudget;
+    if(isRegionSearch) {
+      final Mat region = mGraySrc.submat(mSearchTop, mSearchBottom,
+          mSearchLeft, mSearchRight);
+      mFeatureDetector.detect(region, mSceneKeypoints);
+      mKeypointSelector.select(mSceneKeypoints, region.cols(),
+          region.rows(), keypointBudget);
+      mDescriptorExtractor.compute(region, mSceneKeypoints,
+          mSceneDescriptors);
+      region.release();
+    } else {
+      mSearchLeft = 0;
+      mSearchTop = 0;
+      mFeatureDetector.detect(mGraySrc, mSceneKeypoints);
+      mKeypointSelector.select(mSceneKeypoints, mGraySrc.cols(),
+          mGraySrc.rows(), keypointBudget);
+      mDescriptorExtractor.compute(mGraySrc, mSceneKeypoints,
+          mSceneDescriptors);
+    }
+    mKeypointCount = (int)mSceneKeypoints.total();
+    findSceneCorners();
+    if(mHasFreshCorners) {
+      mRegionMissCount = 0;
+    } else if(isRegionSearch) {
+      mRegionMissCount++;
+    }
+  }
+  
+  // Bounds the last quad, grown to allow for motion since it was found;
+  // returns false if that leaves too little of the frame to skip
+  private boolean setSearchRegion() {
+    mSceneCorners.get(0, 0, mSearchCorners);
+    float minX = mSearchCorners[0];
+    float maxX = minX;
+    float minY = mSearchCorners[1];
+    float maxY = minY;
+    for(int i = 2; i < 8; i += 2) {
+      minX = Math.min(minX, mSearchCorners[i]);
+      maxX = Math.max(maxX, mSearchCorners[i]);
+      minY = Math.min(minY, mSearchCorners[i + 1]);
+      maxY = Math.max(maxY, mSearchCorners[i + 1]);
+    }
+    final double padX = SEARCH_PADDING * (maxX - minX) + MIN_SEARCH_PADDING;
+    final double padY = SEARCH_PADDING * (maxY - minY) + MIN_SEARCH_PADDING;
+    final int cols = mGraySrc.cols();
+    final int rows = mGraySrc.rows();
+    mSearchLeft = (int)Math.max(0, Math.floor(minX - padX));
+    mSearchTop = (int)Math.max(0, Math.floor(minY - padY));
+    mSearchRight = (int)Math.min(cols, Math.ceil(maxX + padX));
+    mSearchBottom = (int)Math.min(rows, Math.ceil(maxY + padY));
+    final long area = (long)(mSearchRight - mSearchLeft) *
+        (mSearchBottom - mSearchTop);
+    return mSearchRight > mSearchLeft && mSearchBottom > mSearchTop &&
+        area < MAX_SEARCH_AREA_FRACTION * rows * cols;
+  }
+  
   private void findSceneCorners() {
-    mDebug = null;
-    List<DMatch> matchesList = mMatches.toList();
-    if(matchesList.size() < 4) {
+    final int matchCount = mDescriptorMatcher.match(mSceneDescriptors,
+        mReferenceDescriptors);
+    mMatchCount = matchCount;
+    if(matchCount < 4) {
       // Too few matches to find homography
       return;
     }
-    List<KeyPoint> referenceKeypointsList = mReferenceKeypoints.toList();
-    List<KeyPoint> sceneKeypointsList = mSceneKeypoints.toList();
     
-    double maxDist = 0;
-    double minDist = Double.MAX_VALUE;
-    for(DMatch match : matchesList) {
-      double dist = match.distance;
-      if(dist < minDist) minDist = dist;
-      if(dist > maxDist) maxDist = dist;
-    }
-    
-    if(minDist > 50) {
+    final float minDist = mDescriptorMatcher.getMinDistance();
+    if(minDist > mAbsentDistance) {
+      // The target is absent
       mSceneCorners.create(0, 0, mSceneCorners.type());
+      mCornerSmoother.reset();
+      mHasHomography = false;
       return;
-    } else if(minDist > 25) {
+    } else if(minDist > mUncertainDistance) {
       return;
     }
     
-    List<Point> goodReferencePointsList = new ArrayList<Point>();
-    List<Point> goodScenePointsList = new ArrayList<Point>();
-    double maxGoodMatchDist = 1.75 * minDist;
-    for(DMatch match : matchesList) {
-      if(match.distance < maxGoodMatchDist) {
-        goodReferencePointsList.add(
-            referenceKeypointsList.get(match.trainIdx).pt);
-        goodScenePointsList.add(sceneKeypointsList.get(match.queryIdx).pt);
-      }
+    final int keypointFloats =
+        ReferenceTarget.KEYPOINT_FIELDS * (int)mSceneKeypoints.total();
+    if(mSceneKeypointData.length < keypointFloats) {
+      mSceneKeypointData = new float[keypointFloats];
     }
-    if(goodReferencePointsList.size() < 4 || goodScenePointsList.size() < 4) {
-      // Too few matches to find homography
-      return;
+    mSceneKeypoints.get(0, 0, mSceneKeypointData);
+    if(mSceneCoords.length < 2 * matchCount) {
+      mSceneCoords = new float[2 * matchCount];
+      mReferenceCoords = new float[2 * matchCount];
+      mStatus = new byte[matchCount];
+    }
+    for(int i = 0; i < matchCount; i++) {
+      final int sceneIdx = ReferenceTarget.KEYPOINT_FIELDS *
+          mDescriptorMatcher.getQueryIndex(i);
+      final int referenceIdx = 2 * mDescriptorMatcher.getTrainIndex(i);
+      // Keypoints from a search region are relative to its corner
+      mSceneCoords[2 * i] = mSceneKeypointData[sceneIdx] + mSearchLeft;
+      mSceneCoords[2 * i + 1] =
+          mSceneKeypointData[sceneIdx + 1] + mSearchTop;
+      mReferenceCoords[2 * i] = mReferenceKeypointCoords[referenceIdx];
+      mReferenceCoords[2 * i + 1] = mReferenceKeypointCoords[referenceIdx + 1];
     }
-    
-    mDebug = goodScenePointsList;
     
     // Find and apply homography
-    MatOfPoint2f goodReferencePoints = new MatOfPoint2f();
-    goodReferencePoints.fromList(goodReferencePointsList);
-    MatOfPoint2f goodScenePoints = new MatOfPoint2f();
-    goodScenePoints.fromList(goodScenePointsList);
-    Mat h = Calib3d.findHomography(goodReferencePoints, goodScenePoints,
-        Calib3d.FM_RANSAC, 5);
+    int goodCount = matchCount;
+    final Mat h;
+    final int predictedInlierCount = countPredictedInliers(matchCount);
+    if(predictedInlierCount >= 4 && predictedInlierCount >=
+        MIN_PREDICTED_INLIER_FRACTION * matchCount) {
+      // The last homography still holds, so least squares on its inliers
+      // replaces RANSAC
+      goodCount = keepPredictedInliers(matchCount);
+      setGoodPoints(goodCount);
+      h = Calib3d.findHomography(mGoodReferencePoints, mGoodScenePoints);
+    } else {
+      setGoodPoints(goodCount);
+      h = Calib3d.findHomography(mGoodReferencePoints, mGoodScenePoints,
+          Calib3d.FM_RANSAC, mReprojectionThreshold);
+    }
+    if(!updateSceneCorners(h)) {
+      return;
+    }
+    mInlierCount = countPredictedInliers(goodCount);
+    if(mRedetectionInterval > 0) {
+      mGoodScenePoints.copyTo(mTrackedScenePoints);
+      mGoodReferencePoints.copyTo(mTrackedReferencePoints);
+      mDetectedPointCount = goodCount;
+      mIsTracking = true;
+    }
+  }
+  
+  private void setGoodPoints(final int count) {
+    mGoodScenePoints.create(count, 1, CvType.CV_32FC2);
+    mGoodScenePoints.put(0, 0, mSceneCoords);
+    mGoodReferencePoints.create(count, 1, CvType.CV_32FC2);
+    mGoodReferencePoints.put(0, 0, mReferenceCoords);
+  }
+  
+  private boolean isPredictedInlier(final int i) {
+    final double[] m = mHomography;
+    final double x = mReferenceCoords[2 * i];
+    final double y = mReferenceCoords[2 * i + 1];
+    final double w = m[6] * x + m[7] * y + m[8];
+    if(w == 0) {
+      return false;
+    }
+    final double dx = (m[0] * x + m[1] * y + m[2]) / w - mSceneCoords[2 * i];
+    final double dy =
+        (m[3] * x + m[4] * y + m[5]) / w - mSceneCoords[2 * i + 1];
+    return dx * dx + dy * dy <
+        mReprojectionThreshold * mReprojectionThreshold;
+  }
+  
+  private int countPredictedInliers(final int count) {
+    if(!mHasHomography) {
+      return 0;
+    }
+    int inlierCount = 0;
+    for(int i = 0; i < count; i++) {
+      if(isPredictedInlier(i)) {
+        inlierCount++;
+      }
+    }
+    return inlierCount;
+  }
+  
+  // Moves the inliers of the last homography to the front
+  private int keepPredictedInliers(final int count) {
+    int inlierCount = 0;
+    for(int i = 0; i < count; i++) {
+      if(isPredictedInlier(i)) {
+        mSceneCoords[2 * inlierCount] = mSceneCoords[2 * i];
+        mSceneCoords[2 * inlierCount + 1] = mSceneCoords[2 * i + 1];
+        mReferenceCoords[2 * inlierCount] = mReferenceCoords[2 * i];
+        mReferenceCoords[2 * inlierCount + 1] = mReferenceCoords[2 * i + 1];
+        inlierCount++;
+      }
+    }
+    return inlierCount;
+  }
+  
+  // Smooths and accepts the quad that h projects, if it is plausible
+  private boolean updateSceneCorners(final Mat h) {
+    if(h.empty()) {
+      h.release();
+      return false;
+    }
     Core.perspectiveTransform(mReferenceCorners, mCandidateSceneCorners, h);
     mCandidateSceneCorners.convertTo(mIntSceneCorners, CvType.CV_32S);
-    if(Imgproc.isContourConvex(mIntSceneCorners)) {
-      mCandidateSceneCorners.copyTo(mSceneCorners);
+    if(!Imgproc.isContourConvex(mIntSceneCorners)) {
+      h.release();
+      return false;
+    }
+    h.get(0, 0, mHomography);
+    h.release();
+    mHasHomography = true;
+    mCandidateSceneCorners.get(0, 0, mCornerData);
+    mCornerSmoother.update(mCornerData, mCornerData);
+    mSceneCorners.create(4, 1, CvType.CV_32FC2);
+    mSceneCorners.put(0, 0, mCornerData);
+    mHasFreshCorners = true;
+    mCoastedFrames = 0;
+    return true;
+  }
+  
+  // Keeps a briefly lost quad moving instead of freezing or dropping it
+  private void coastSceneCorners() {
+    if(mSceneCorners.height() < 4 || !mCornerSmoother.hasState() ||
+        mCoastedFrames >= MAX_COASTED_FRAMES) {
+      return;
     }
+    mCornerSmoother.predict(mCornerData);
+    mSceneCorners.put(0, 0, mCornerData);
+    mCoastedFrames++;
+  }
+  
+  private boolean trackSceneCorners() {
+    Video.calcOpticalFlowPyrLK(mPrevGraySrc, mGraySrc, mTrackedScenePoints,
+        mFlowScenePoints, mFlowStatus, mFlowError);
+    final int count = (int)mFlowScenePoints.total();
+    if(mSceneCoords.length < 2 * count) {
+      mSceneCoords = new float[2 * count];
+      mReferenceCoords = new float[2 * count];
+      mStatus = new byte[count];
+    }
+    mFlowScenePoints.get(0, 0, mSceneCoords);
+    mTrackedReferencePoints.get(0, 0, mReferenceCoords);
+    mFlowStatus.get(0, 0, mStatus);
+    
+    // Keep only the points that optical flow could follow
+    int trackedCount = 0;
+    for(int i = 0; i < count; i++) {
+      if(mStatus[i] != 0) {
+        mSceneCoords[2 * trackedCount] = mSceneCoords[2 * i];
+        mSceneCoords[2 * trackedCount + 1] = mSceneCoords[2 * i + 1];
+        mReferenceCoords[2 * trackedCount] = mReferenceCoords[2 * i];
+        mReferenceCoords[2 * trackedCount + 1] = mReferenceCoords[2 * i + 1];
+        trackedCount++;
+      }
+    }
+    if(trackedCount < MIN_TRACKED_POINTS ||
+        trackedCount < MIN_TRACKED_FRACTION * mDetectedPointCount) {
+      // Tracking confidence is too low
+      return false;
+    }
+    mTrackedScenePoints.create(trackedCount, 1, CvType.CV_32FC2);
+    mTrackedScenePoints.put(0, 0, mSceneCoords);
+    mTrackedReferencePoints.create(trackedCount, 1, CvType.CV_32FC2);
+    mTrackedReferencePoints.put(0, 0, mReferenceCoords);
+    
+    return updateSceneCorners(Calib3d.findHomography(
+        mTrackedReferencePoints, mTrackedScenePoints, Calib3d.FM_RANSAC,
+        mReprojectionThreshold));
   }
   
   protected void draw(final Mat src, final Mat dst) {
@@ -157,16 +587,22 @@ public class ImageDetectionFilter implements Filter {
       Mat dstROI = dst.submat(0, height, 0, width);
       Imgproc.resize(mReferenceImage, dstROI, dstROI.size(), 0, 0,
           Imgproc.INTER_AREA);
+      dstROI.release();
       return;
     }
     
-    Core.line(dst, new Point(mSceneCorners.get(0, 0)),
-        new Point(mSceneCorners.get(1, 0)), mLineColor, 4);
-    Core.line(dst, new Point(mSceneCorners.get(1, 0)),
-        new Point(mSceneCorners.get(2, 0)), mLineColor, 4);
-    Core.line(dst, new Point(mSceneCorners.get(2, 0)),
-        new Point(mSceneCorners.get(3, 0)), mLineColor, 4);
-    Core.line(dst, new Point(mSceneCorners.get(3, 0)),
-        new Point(mSceneCorners.get(0, 0)), mLineColor, 4);
+    // Map the corners back to the full-size frame
+    mSceneCorners.get(0, 0, mDrawCorners);
+    for(int i = 0; i < 8; i++) {
+      mDrawCorners[i] /= mDetectionScale;
+    }
+    for(int i = 0; i < 4; i++) {
+      final int j = (i + 1) % 4;
+      mLineStart.x = mDrawCorners[2 * i];
+      mLineStart.y = mDrawCorners[2 * i + 1];
+      mLineEnd.x = mDrawCorners[2 * j];
+      mLineEnd.y = mDrawCorners[2 * j + 1];
+      Core.line(dst, mLineStart, mLineEnd, mLineColor, 4);
+    }
   }
 }
@@ -0,0 +1,166 @@
+package com.tutorials.secondsight.filters;
+
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+public class MatPool {
+  // Not android.util.Log, since the filters also run on desktop JVMs;
+  // Android forwards java.util.logging to logcat
+  private static final Logger LOGGER =
+    Logger.getLogger(MatPool.class.getName());
+  // A buffer still leased after this many frames is counted as leaked
+  public static final int DEFAULT_LEAK_FRAMES = 30;
+  
+  private static final MatPool sShared = new MatPool(DEFAULT_LEAK_FRAMES);
+  
+  // Few distinct sizes and types are in use at once, so a linear search
+  // beats hashing
+  private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+  private final int mLeakFrames;
+  private long mFrameIndex;
+  private int mLeasedCount;
+  private long mLeasedBytes;
+  private long mAllocatedBytes;
+  private int mHighWaterCount;
+  private long mHighWaterBytes;
+  private int mLeakCount;
+  
+  public MatPool(final int leakFrames) {
+    mLeakFrames = leakFrames;
+  }
+  
+  // The pool that the filters lease their scratch buffers from
+  public static MatPool getShared() {
+    return sShared;
+  }
+  
+  // Returns a buffer of exactly the given size and type, with undefined
+  // contents, that the caller must hand back to release()
+  public synchronized Mat lease(final int rows, final int cols,
+      final int type) {
+    Entry entry = null;
+    for(int i = 0; i < mEntries.size(); i++) {
+      final Entry candidate = mEntries.get(i);
+      if(!candidate.mIsLeased && candidate.mRows == rows &&
+          candidate.mCols == cols && candidate.mType == type) {
+        entry = candidate;
+        break;
+      }
+    }
+    if(entry == null) {
+      entry = new Entry(rows, cols, type);
+      mEntries.add(entry);
+      mAllocatedBytes += entry.mBytes;
+    }
+    entry.mIsLeased = true;
+    entry.mIsLeakCounted = false;
+    entry.mLeaseFrameIndex = mFrameIndex;
+    mLeasedCount++;
+    mLeasedBytes += entry.mBytes;
+    if(mLeasedCount > mHighWaterCount) {
+      mHighWaterCount = mLeasedCount;
+    }
+    if(mLeasedBytes > mHighWaterBytes) {
+      mHighWaterBytes = mLeasedBytes;
+    }
+    return entry.mMat;
+  }
+  
+  public synchronized void release(final Mat mat) {
+    for(int i = 0; i < mEntries.size(); i++) {
+      final Entry entry = mEntries.get(i);
+      if(entry.mMat == mat) {
+        if(!entry.mIsLeased) {
+          throw new IllegalStateException("Buffer released twice");
+        }
+        entry.mIsLeased = false;
+        mLeasedCount--;
+        mLeasedBytes -= entry.mBytes;
+        if(entry.mMat.rows() != entry.mRows ||
+            entry.mMat.cols() != entry.mCols ||
+            entry.mMat.type() != entry.mType) {
+          // The borrower reallocated it, so it no longer fits its bucket
+          entry.mMat.create(entry.mRows, entry.mCols, entry.mType);
+        }
+        return;
+      }
+    }
+    throw new IllegalArgumentException("Buffer is not from this pool");
+  }
+  
+  // Called once per displayed frame; counts the buffers that have been
+  // leased for too long
+  public synchronized void endFrame() {
+    mFrameIndex++;
+    for(int i = 0; i < mEntries.size(); i++) {
+      final Entry entry = mEntries.get(i);
+      if(entry.mIsLeased && !entry.mIsLeakCounted &&
+          mFrameIndex - entry.mLeaseFrameIndex >= mLeakFrames) {
+        entry.mIsLeakCounted = true;
+        mLeakCount++;
+        LOGGER.warning("Leaked a " + entry.mCols + "x" + entry.mRows +
+            " buffer of type " + CvType.typeToString(entry.mType));
+      }
+    }
+  }
+  
+  // Frees the buffers that are not leased, e.g. after the frame size
+  // changes
+  public synchronized void trim() {
+    for(int i = mEntries.size() - 1; i >= 0; i--) {
+      final Entry entry = mEntries.get(i);
+      if(!entry.mIsLeased) {
+        entry.mMat.release();
+        mAllocatedBytes -= entry.mBytes;
+        mEntries.remove(i);
+      }
+    }
+  }
+  
+  public synchronized int getLeasedCount() {
+    return mLeasedCount;
+  }
+  
+  public synchronized int getAllocatedCount() {
+    return mEntries.size();
+  }
+  
+  public synchronized long getAllocatedBytes() {
+    return mAllocatedBytes;
+  }
+  
+  // The most buffers and bytes that were leased at the same time
+  public synchronized int getHighWaterCount() {
+    return mHighWaterCount;
+  }
+  
+  public synchronized long getHighWaterBytes() {
+    return mHighWaterBytes;
+  }
+  
+  public synchronized int getLeakCount() {
+    return mLeakCount;
+  }
+  
+  private static class Entry {
+    final Mat mMat;
+    final int mRows;
+    final int mCols;
+    final int mType;
+    final long mBytes;
+    boolean mIsLeased;
+    boolean mIsLeakCounted;
+    long mLeaseFrameIndex;
+    
+    Entry(final int rows, final int cols, final int type) {
+      mMat = new Mat(rows, cols, type);
+      mRows = rows;
+      mCols = cols;
+      mType = type;
+      mBytes = (long)rows * cols * CvType.ELEM_SIZE(type);
+    }
+  }
+}
@@ -0,0 +1,189 @@
+package com.tutorials.secondsight.filters;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.opencv.core.Mat;
+
+public class ParallelFilter implements Filter {
+  public interface Factory {
+    public abstract Filter create();
+  }
+  
+  private static ExecutorService sExecutor;
+  
+  private final Filter[] mStripeFilters;
+  private final int mHalo;
+  private final StripeTask[] mTasks;
+  private final Mat[] mStripeResults;
+  
+  private Mat mSrc;
+  private Mat mDst;
+  private boolean mIsCopyPhase;
+  private int mPendingStripes;
+  private RuntimeException mStripeError;
+  
+  // Shares one stateless filter between all stripes
+  public ParallelFilter(final Filter filter, final int halo) {
+    this(new Factory() {
+      @Override
+      public Filter create() {
+        return filter;
+      }
+    }, halo, Runtime.getRuntime().availableProcessors());
+  }
+  
+  // Gives each stripe its own filter, for filters with scratch buffers
+  public ParallelFilter(final Factory factory, final int halo) {
+    this(factory, halo, Runtime.getRuntime().availableProcessors());
+  }
+  
+  // halo is the number of rows a filter reads beyond each output row,
+  // e.g. 2 for a 5x5 kernel
+  public ParallelFilter(final Factory factory, final int halo,
+      final int stripeCount) {
+    if(stripeCount < 1 || halo < 0) {
+      throw new IllegalArgumentException(
+          "Invalid stripe count or halo: " + stripeCount + ", " + halo);
+    }
+    mHalo = halo;
+    mStripeFilters = new Filter[stripeCount];
+    mTasks = new StripeTask[stripeCount];
+    mStripeResults = new Mat[stripeCount];
+    for(int i = 0; i < stripeCount; i++) {
+      mStripeFilters[i] = factory.create();
+      mTasks[i] = new StripeTask(i);
+      mStripeResults[i] = new Mat();
+    }
+  }
+  
+  private static synchronized ExecutorService getExecutor() {
+    if(sExecutor == null) {
+      sExecutor = Executors.newFixedThreadPool(
+          Runtime.getRuntime().availableProcessors(),
+          new ThreadFactory() {
+            private int mCount;
+            
+            @Override
+            public Thread newThread(final Runnable r) {
+              final Thread thread =
+                  new Thread(r, "ParallelFilter-" + mCount++);
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+    }
+    return sExecutor;
+  }
+  
+  @Override
+  public synchronized void apply(final Mat src, final Mat dst) {
+    if(mStripeFilters.length == 1) {
+      mStripeFilters[0].apply(src, dst);
+      return;
+    }
+    if(dst != src) {
+      dst.create(src.size(), src.type());
+    }
+    mSrc = src;
+    mDst = dst;
+    try {
+      mIsCopyPhase = false;
+      runStripes();
+      if(mHalo > 0) {
+        // Stripes overlap, so results are only written back once every
+        // stripe has finished reading its halo from src
+        mIsCopyPhase = true;
+        runStripes();
+      }
+    } finally {
+      mSrc = null;
+      mDst = null;
+    }
+  }
+  
+  private void runStripes() {
+    mPendingStripes = mTasks.length;
+    mStripeError = null;
+    final ExecutorService executor = getExecutor();
+    for(int i = 1; i < mTasks.length; i++) {
+      executor.execute(mTasks[i]);
+    }
+    mTasks[0].run();
+    boolean isInterrupted = false;
+    while(mPendingStripes > 0) {
+      try {
+        wait();
+      } catch(InterruptedException e) {
+        isInterrupted = true;
+      }
+    }
+    if(isInterrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if(mStripeError != null) {
+      throw mStripeError;
+    }
+  }
+  
+  private synchronized void onStripeDone(final RuntimeException error) {
+    if(error != null) {
+      mStripeError = error;
+    }
+    mPendingStripes--;
+    notifyAll();
+  }
+  
+  private class StripeTask implements Runnable {
+    private final int mIndex;
+    
+    StripeTask(final int index) {
+      mIndex = index;
+    }
+    
+    @Override
+    public void run() {
+      RuntimeException error = null;
+      try {
+        runStripe();
+      } catch(RuntimeException e) {
+        error = e;
+      }
+      onStripeDone(error);
+    }
+    
+    private void runStripe() {
+      final int rows = mSrc.rows();
+      final int cols = mSrc.cols();
+      final int start = rows * mIndex / mTasks.length;
+      final int end = rows * (mIndex + 1) / mTasks.length;
+      if(start == end) {
+        return;
+      }
+      if(mHalo == 0) {
+        final Mat srcStripe = mSrc.submat(start, end, 0, cols);
+        final Mat dstStripe = mDst.submat(start, end, 0, cols);
+        mStripeFilters[mIndex].apply(srcStripe, dstStripe);
+        srcStripe.release();
+        dstStripe.release();
+        return;
+      }
+      final int haloStart = Math.max(0, start - mHalo);
+      final Mat result = mStripeResults[mIndex];
+      if(!mIsCopyPhase) {
+        final int haloEnd = Math.min(rows, end + mHalo);
+        final Mat srcStripe = mSrc.submat(haloStart, haloEnd, 0, cols);
+        mStripeFilters[mIndex].apply(srcStripe, result);
+        srcStripe.release();
+      } else {
+        final Mat resultInner =
+            result.submat(start - haloStart, end - haloStart, 0, cols);
+        final Mat dstStripe = mDst.submat(start, end, 0, cols);
+        resultInner.copyTo(dstStripe);
+        resultInner.release();
+        dstStripe.release();
+      }
+    }
+  }
+}
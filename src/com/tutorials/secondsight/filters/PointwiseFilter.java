@@ -0,0 +1,7 @@
+package com.tutorials.secondsight.filters;
+
+public interface PointwiseFilter extends Filter {
+  // Filters each RGBA pixel in place, independently of its neighbors.
+  // Must be safe to call from several threads at once.
+  public abstract void applyPixels(final byte[] rgba, final int length);
+}
@@ -1,13 +1,20 @@
 package com.tutorials.secondsight.filters.convolution;
 
 import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfInt;
+import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
+import com.tutorials.secondsight.filters.ChangeDetector;
 import com.tutorials.secondsight.filters.Filter;
+import com.tutorials.secondsight.filters.MatPool;
 
 public class StrokeEdgesFilter implements Filter {
+  // Rows of context the full-size kernel needs around each output row
+  public static final int HALO = 2;
+  
   private final Mat mKernel = new MatOfInt(
     0, 0, 1, 0, 0,
     0, 1, 2, 1, 0,
@@ -15,11 +22,164 @@ public class StrokeEdgesFilter implements Filter {
     0, 1, 2, 1, 0,
     0, 0, 1, 0, 0
   );
+  private volatile int mDetectionHeight;
+  private final MatPool mPool = MatPool.getShared();
+  private final Size mSmallSize = new Size();
+  
+  private volatile ChangeDetector mChangeDetector;
+  private volatile boolean mIsCacheStale;
+  private final Mat mCachedDst = new Mat();
+  private double mCachedScale;
+  
+  public StrokeEdgesFilter() {
+    this(0);
+  }
+  
+  // Finds the edges in the luminance of a frame downscaled to at most
+  // detectionHeight rows, or in every channel at full size if it is 0
+  public StrokeEdgesFilter(final int detectionHeight) {
+    mDetectionHeight = detectionHeight;
+  }
+  
+  // Takes effect from the next frame; may be called on any thread
+  public void setDetectionHeight(final int detectionHeight) {
+    mDetectionHeight = detectionHeight;
+  }
+  
+  public int getDetectionHeight() {
+    return mDetectionHeight;
+  }
+  
+  // Reuses the last output for the tiles that the detector finds
+  // unchanged, or reprocesses every frame if it is null. When downscaled,
+  // only frames without any change are reused. The detector must not be
+  // shared with another filter.
+  public void setChangeDetector(final ChangeDetector changeDetector) {
+    mChangeDetector = changeDetector;
+  }
+  
+  // Reprocesses the whole of the next frame, e.g. because the filters
+  // before this one changed and so the cached output no longer matches
+  // frames that look the same; may be called on any thread
+  public void invalidateCache() {
+    mIsCacheStale = true;
+  }
+  
   @Override
   public void apply(Mat src, Mat dst) {
-    final Mat mEdges = new Mat();
-    Imgproc.filter2D(src, mEdges, -1, mKernel);
-    Core.bitwise_not(mEdges, mEdges);
-    Core.multiply(src, mEdges, dst, 1.0/255);
+    final int detectionHeight = mDetectionHeight;
+    double scale = 1;
+    if(detectionHeight > 0 && src.rows() > detectionHeight) {
+      scale = detectionHeight / (double)src.rows();
+    }
+    final ChangeDetector changeDetector = mChangeDetector;
+    if(changeDetector == null) {
+      applyRegion(src, dst, scale);
+      return;
+    }
+    
+    if(mIsCacheStale) {
+      mIsCacheStale = false;
+      // Also compare later frames with this one rather than the old input
+      changeDetector.reset();
+    }
+    final boolean isCacheValid = scale == mCachedScale &&
+        mCachedDst.rows() == src.rows() && mCachedDst.cols() == src.cols() &&
+        mCachedDst.type() == src.type();
+    if(!changeDetector.update(src) && isCacheValid) {
+      mCachedDst.copyTo(dst);
+      return;
+    }
+    // A downscaled tile is resampled on its own grid, which would not line
+    // up with its cached neighbours, and the whole frame is cheap to
+    // refresh at the detection height anyway
+    if(!isCacheValid || scale < 1 || changeDetector.isEveryTileChanged()) {
+      applyRegion(src, dst, scale);
+      dst.copyTo(mCachedDst);
+      mCachedScale = scale;
+      return;
+    }
+    
+    // Filter each changed tile with enough context around it that the
+    // kernel sees the same pixels as it would in the whole frame
+    final int tileCols = changeDetector.getTileCols();
+    final int tileRows = changeDetector.getTileRows();
+    for(int ty = 0; ty < tileRows; ty++) {
+      for(int tx = 0; tx < tileCols; tx++) {
+        if(!changeDetector.isTileChanged(tx, ty)) {
+          continue;
+        }
+        final int top = changeDetector.getTileTop(ty);
+        final int bottom = changeDetector.getTileTop(ty + 1);
+        final int left = changeDetector.getTileLeft(tx);
+        final int right = changeDetector.getTileLeft(tx + 1);
+        final int haloTop = Math.max(0, top - HALO);
+        final int haloBottom = Math.min(src.rows(), bottom + HALO);
+        final int haloLeft = Math.max(0, left - HALO);
+        final int haloRight = Math.min(src.cols(), right + HALO);
+        final Mat srcTile = src.submat(haloTop, haloBottom, haloLeft,
+            haloRight);
+        final Mat result = mPool.lease(haloBottom - haloTop,
+            haloRight - haloLeft, src.type());
+        try {
+          applyRegion(srcTile, result, 1);
+          final Mat resultInner = result.submat(top - haloTop,
+              bottom - haloTop, left - haloLeft, right - haloLeft);
+          final Mat cachedTile = mCachedDst.submat(top, bottom, left, right);
+          resultInner.copyTo(cachedTile);
+          resultInner.release();
+          cachedTile.release();
+        } finally {
+          mPool.release(result);
+          srcTile.release();
+        }
+      }
+    }
+    mCachedDst.copyTo(dst);
+  }
+  
+  // Finds the edges at the given scale of src's size
+  private void applyRegion(final Mat src, final Mat dst, final double scale) {
+    final Mat edges = mPool.lease(src.rows(), src.cols(), src.type());
+    try {
+      if(scale >= 1) {
+        Imgproc.filter2D(src, edges, -1, mKernel);
+        Core.bitwise_not(edges, edges);
+      } else {
+        findSmallEdges(src, scale, edges);
+      }
+      Core.multiply(src, edges, dst, 1.0/255);
+    } finally {
+      mPool.release(edges);
+    }
+  }
+  
+  private void findSmallEdges(final Mat src, final double scale,
+      final Mat edges) {
+    final int smallRows = (int)Math.max(1, Math.round(src.rows() * scale));
+    final int smallCols = (int)Math.max(1, Math.round(src.cols() * scale));
+    mSmallSize.width = smallCols;
+    mSmallSize.height = smallRows;
+    final Mat smallGray = mPool.lease(smallRows, smallCols, CvType.CV_8UC1);
+    final Mat smallEdges = mPool.lease(smallRows, smallCols, CvType.CV_8UC1);
+    final Mat grayEdges = mPool.lease(src.rows(), src.cols(), CvType.CV_8UC1);
+    try {
+      final Mat smallSrc = mPool.lease(smallRows, smallCols, src.type());
+      try {
+        Imgproc.resize(src, smallSrc, mSmallSize, 0, 0, Imgproc.INTER_AREA);
+        Imgproc.cvtColor(smallSrc, smallGray, Imgproc.COLOR_RGBA2GRAY);
+      } finally {
+        mPool.release(smallSrc);
+      }
+      Imgproc.filter2D(smallGray, smallEdges, -1, mKernel);
+      Core.bitwise_not(smallEdges, smallEdges);
+      Imgproc.resize(smallEdges, grayEdges, src.size(), 0, 0,
+          Imgproc.INTER_LINEAR);
+      Imgproc.cvtColor(grayEdges, edges, Imgproc.COLOR_GRAY2RGBA);
+    } finally {
+      mPool.release(grayEdges);
+      mPool.release(smallEdges);
+      mPool.release(smallGray);
+    }
   }
 }
@@ -2,7 +2,7 @@ package com.tutorials.secondsight.filters.curve;
 
 public class CrossProcessCurveFilter extends CurveFilter {
   public CrossProcessCurveFilter() {
-    super(
+    super("crossprocess",
       new double[] { 0, 255 }, // vValIn
       new double[] { 0, 255 }, // vValOut
       new double[] { 0, 56, 211, 255 }, // rValIn
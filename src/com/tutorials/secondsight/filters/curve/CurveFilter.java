@@ -1,51 +1,81 @@
 package com.tutorials.secondsight.filters.curve;
 
-import org.apache.commons.math3.analysis.UnivariateFunction;
-import org.apache.commons.math3.analysis.interpolation.LinearInterpolator;
-import org.apache.commons.math3.analysis.interpolation.SplineInterpolator;
-import org.apache.commons.math3.analysis.interpolation.UnivariateInterpolator;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfInt;
 
-import com.tutorials.secondsight.filters.Filter;
+import com.tutorials.secondsight.filters.PointwiseFilter;
 
-public class CurveFilter implements Filter {
+public class CurveFilter implements PointwiseFilter {
+  private final CurveTable mCurve;
   private final Mat mLUT = new MatOfInt();
+  // Swapped whole when the intensity changes; mLUT catches up on the
+  // next apply()
+  private volatile byte[] mTable = new byte[256 * 4];
+  private byte[] mUploadedTable;
+  private float mIntensity = 1;
   
   public CurveFilter(
       final double[] vValIn, final double[] vValOut,
       final double[] rValIn, final double[] rValOut,
       final double[] gValIn, final double[] gValOut,
       final double[] bValIn, final double[] bValOut) {
-    UnivariateFunction vFunc = newFunc(vValIn, vValOut);
-    UnivariateFunction rFunc = newFunc(rValIn, rValOut);
-    UnivariateFunction gFunc = newFunc(gValIn, gValOut);
-    UnivariateFunction bFunc = newFunc(bValIn, bValOut);
+    this(new CurveTable(vValIn, vValOut, rValIn, rValOut, gValIn, gValOut,
+        bValIn, bValOut));
+  }
+  
+  // Filters with the same curveID share one evaluation of the curves
+  public CurveFilter(final String curveID,
+      final double[] vValIn, final double[] vValOut,
+      final double[] rValIn, final double[] rValOut,
+      final double[] gValIn, final double[] gValOut,
+      final double[] bValIn, final double[] bValOut) {
+    this(CurveTable.getShared(curveID, vValIn, vValOut, rValIn, rValOut,
+        gValIn, gValOut, bValIn, bValOut));
+  }
+  
+  public CurveFilter(final CurveTable curve) {
+    mCurve = curve;
+    mCurve.bake(mIntensity, mTable);
     mLUT.create(256, 1, CvType.CV_8UC4);
-    for(int i = 0; i < 256; i++) {
-      final double v = vFunc.value(i);
-      final double r = rFunc.value(v);
-      final double g = gFunc.value(v);
-      final double b = bFunc.value(v);
-      mLUT.put(i, 0, r, g, b, i);
+    uploadTable();
+  }
+  
+  public synchronized float getIntensity() {
+    return mIntensity;
+  }
+  
+  // Blends between no change (0) and the full curve (1). Cheap enough to
+  // call from a slider; may be called while another thread filters.
+  public synchronized void setIntensity(final float intensity) {
+    final byte[] table = new byte[256 * 4];
+    mCurve.bake(intensity, table);
+    mIntensity = intensity;
+    mTable = table;
+  }
+  
+  private void uploadTable() {
+    final byte[] table = mTable;
+    if(table != mUploadedTable) {
+      mLUT.put(0, 0, table);
+      mUploadedTable = table;
     }
   }
   
-  private UnivariateFunction newFunc(final double[] valIn,
-      final double[] valOut) {
-    UnivariateInterpolator interpolator;
-    if(valIn.length > 2) {
-      interpolator = new SplineInterpolator();
-    } else {
-      interpolator = new LinearInterpolator();
+  @Override
+  public void applyPixels(final byte[] rgba, final int length) {
+    final byte[] table = mTable;
+    for(int i = 0; i < length; i += 4) {
+      rgba[i] = table[(rgba[i] & 0xff) << 2];
+      rgba[i + 1] = table[((rgba[i + 1] & 0xff) << 2) + 1];
+      rgba[i + 2] = table[((rgba[i + 2] & 0xff) << 2) + 2];
     }
-    return interpolator.interpolate(valIn, valOut);
   }
   
   @Override
   public void apply(Mat src, Mat dst) {
+    uploadTable();
     Core.LUT(src, mLUT, dst);
   }
-}
\ No newline at end of file
+}
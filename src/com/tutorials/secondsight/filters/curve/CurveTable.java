@@ -0,0 +1,82 @@
+package com.tutorials.secondsight.filters.curve;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.math3.analysis.UnivariateFunction;
+import org.apache.commons.math3.analysis.interpolation.LinearInterpolator;
+import org.apache.commons.math3.analysis.interpolation.SplineInterpolator;
+import org.apache.commons.math3.analysis.interpolation.UnivariateInterpolator;
+
+// A value curve followed by per-channel curves, evaluated once for every
+// 8-bit input. Tables for named curves are built once and shared.
+public class CurveTable {
+  private static final Map<String, CurveTable> sSharedTables =
+    new HashMap<String, CurveTable>();
+  
+  // Unrounded r, g and b outputs for each input value
+  private final float[] mValues = new float[3 * 256];
+  
+  public static CurveTable getShared(final String curveID,
+      final double[] vValIn, final double[] vValOut,
+      final double[] rValIn, final double[] rValOut,
+      final double[] gValIn, final double[] gValOut,
+      final double[] bValIn, final double[] bValOut) {
+    synchronized(sSharedTables) {
+      CurveTable table = sSharedTables.get(curveID);
+      if(table == null) {
+        table = new CurveTable(vValIn, vValOut, rValIn, rValOut,
+            gValIn, gValOut, bValIn, bValOut);
+        sSharedTables.put(curveID, table);
+      }
+      return table;
+    }
+  }
+  
+  public CurveTable(
+      final double[] vValIn, final double[] vValOut,
+      final double[] rValIn, final double[] rValOut,
+      final double[] gValIn, final double[] gValOut,
+      final double[] bValIn, final double[] bValOut) {
+    final UnivariateFunction vFunc = newFunc(vValIn, vValOut);
+    final UnivariateFunction rFunc = newFunc(rValIn, rValOut);
+    final UnivariateFunction gFunc = newFunc(gValIn, gValOut);
+    final UnivariateFunction bFunc = newFunc(bValIn, bValOut);
+    for(int i = 0; i < 256; i++) {
+      // Splines may overshoot, and fail outside their knots
+      final double v = clamp(vFunc.value(i));
+      mValues[3 * i] = (float)clamp(rFunc.value(v));
+      mValues[3 * i + 1] = (float)clamp(gFunc.value(v));
+      mValues[3 * i + 2] = (float)clamp(bFunc.value(v));
+    }
+  }
+  
+  private static UnivariateFunction newFunc(final double[] valIn,
+      final double[] valOut) {
+    UnivariateInterpolator interpolator;
+    if(valIn.length > 2) {
+      interpolator = new SplineInterpolator();
+    } else {
+      interpolator = new LinearInterpolator();
+    }
+    return interpolator.interpolate(valIn, valOut);
+  }
+  
+  private static double clamp(final double value) {
+    return Math.max(0, Math.min(255, value));
+  }
+  
+  // Fills table with an RGBA entry per input value, blended from the
+  // identity (intensity 0) to the full curve (intensity 1). The alpha
+  // entries stay the identity.
+  public void bake(final float intensity, final byte[] table) {
+    for(int i = 0; i < 256; i++) {
+      for(int c = 0; c < 3; c++) {
+        final float value = i + intensity * (mValues[3 * i + c] - i);
+        table[4 * i + c] =
+            (byte)Math.round(Math.max(0f, Math.min(255f, value)));
+      }
+      table[4 * i + 3] = (byte)i;
+    }
+  }
+}
@@ -2,7 +2,7 @@ package com.tutorials.secondsight.filters.curve;
 
 public class PortraCurveFilter extends CurveFilter {
   public PortraCurveFilter() {
-    super(
+    super("portra",
       new double[] { 0, 23, 157, 255 }, // vValIn
       new double[] { 0, 20, 173, 255 }, // vValOut
       new double[] { 0, 69, 213, 255 }, // rValIn
@@ -2,7 +2,7 @@ package com.tutorials.secondsight.filters.curve;
 
 public class ProviaCurveFilter extends CurveFilter {
   public ProviaCurveFilter() {
-    super(
+    super("provia",
       new double[] { 0, 255 }, // vValIn
       new double[] { 0, 255 }, // vValOut
       new double[] { 0, 59, 202, 255 }, // rValIn
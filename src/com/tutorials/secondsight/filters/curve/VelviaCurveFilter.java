@@ -2,7 +2,7 @@ package com.tutorials.secondsight.filters.curve;
 
 public class VelviaCurveFilter extends CurveFilter {
   public VelviaCurveFilter() {
-    super(
+    super("velvia",
       new double[] { 0, 128, 221, 255 }, // vValIn
       new double[] { 0, 118, 215, 255 }, // vValOut
       new double[] { 0, 25, 122, 165, 255 }, // rValIn
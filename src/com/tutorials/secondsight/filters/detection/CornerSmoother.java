@@ -0,0 +1,62 @@
+package com.tutorials.secondsight.filters.detection;
+
+import java.util.Arrays;
+
+public class CornerSmoother {
+  private final float mAlpha;
+  private final float mBeta;
+  private final float mMaxJump;
+  private final float[] mPosition = new float[8];
+  private final float[] mVelocity = new float[8];
+  private boolean mHasState;
+  
+  // An alpha-beta filter over the 8 coordinates of a quad. Measurements
+  // further than maxJump pixels from the prediction restart the filter.
+  public CornerSmoother(final float alpha, final float beta,
+      final float maxJump) {
+    mAlpha = alpha;
+    mBeta = beta;
+    mMaxJump = maxJump;
+  }
+  
+  public boolean hasState() {
+    return mHasState;
+  }
+  
+  public void reset() {
+    mHasState = false;
+  }
+  
+  // Folds a measured quad into the state; smoothed may be measured
+  public void update(final float[] measured, final float[] smoothed) {
+    if(mHasState) {
+      for(int i = 0; i < 8; i++) {
+        if(Math.abs(measured[i] - (mPosition[i] + mVelocity[i])) > mMaxJump) {
+          mHasState = false;
+          break;
+        }
+      }
+    }
+    if(!mHasState) {
+      System.arraycopy(measured, 0, mPosition, 0, 8);
+      Arrays.fill(mVelocity, 0f);
+      mHasState = true;
+    } else {
+      for(int i = 0; i < 8; i++) {
+        final float predicted = mPosition[i] + mVelocity[i];
+        final float residual = measured[i] - predicted;
+        mPosition[i] = predicted + mAlpha * residual;
+        mVelocity[i] += mBeta * residual;
+      }
+    }
+    System.arraycopy(mPosition, 0, smoothed, 0, 8);
+  }
+  
+  // Advances the state by one frame without a measurement
+  public void predict(final float[] predicted) {
+    for(int i = 0; i < 8; i++) {
+      mPosition[i] += mVelocity[i];
+    }
+    System.arraycopy(mPosition, 0, predicted, 0, 8);
+  }
+}
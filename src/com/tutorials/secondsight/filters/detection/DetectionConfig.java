@@ -0,0 +1,208 @@
+package com.tutorials.secondsight.filters.detection;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.FeatureDetector;
+
+// Selects the feature detector, descriptor extractor and matcher that
+// ImageDetectionFilter uses, and the thresholds that depend on them.
+// All supported extractors produce binary descriptors, so matching is by
+// Hamming distance, either brute force or through a FLANN LSH index.
+public class DetectionConfig {
+  // The distance thresholds of the presets other than STAR_FREAK are
+  // starting points; tune them with DetectionEvaluation
+  public static final DetectionConfig STAR_FREAK = new DetectionConfig(
+    "star-freak", FeatureDetector.STAR, DescriptorExtractor.FREAK,
+    DescriptorMatcher.BRUTEFORCE_HAMMING, 500, 0.8f, 5, 50, 25);
+  public static final DetectionConfig ORB = new DetectionConfig(
+    "orb", FeatureDetector.ORB, DescriptorExtractor.ORB,
+    DescriptorMatcher.BRUTEFORCE_HAMMING, 500, 0.8f, 5, 64, 40);
+  public static final DetectionConfig FAST_BRIEF = new DetectionConfig(
+    "fast-brief", FeatureDetector.FAST, DescriptorExtractor.BRIEF,
+    DescriptorMatcher.BRUTEFORCE_HAMMING, 500, 0.8f, 5, 64, 40);
+  public static final DetectionConfig BRISK = new DetectionConfig(
+    "brisk", FeatureDetector.BRISK, DescriptorExtractor.BRISK,
+    DescriptorMatcher.BRUTEFORCE_HAMMING, 500, 0.8f, 5, 100, 70);
+  public static final DetectionConfig ORB_LSH = new DetectionConfig(
+    "orb-lsh", FeatureDetector.ORB, DescriptorExtractor.ORB,
+    DescriptorMatcher.FLANNBASED, 500, 0.8f, 5, 64, 40);
+  public static final DetectionConfig[] PRESETS = {
+    STAR_FREAK, ORB, FAST_BRIEF, BRISK, ORB_LSH
+  };
+  
+  // ORB finds this many times the budget, for the selector to spread out
+  private static final int ORB_OVERSAMPLING = 2;
+  // Written the way FlannBasedMatcher.write() lays out its parameters;
+  // algorithm 6 is FLANN_INDEX_LSH. Shared with ReferenceDatabase.
+  static final String LSH_PARAMS =
+    "indexParams:\n" +
+    flannParam("algorithm", 23, "6") +
+    flannParam("table_number", 4, "12") +
+    flannParam("key_size", 4, "20") +
+    flannParam("multi_probe_level", 4, "2") +
+    "searchParams:\n" +
+    flannParam("checks", 4, "32") +
+    flannParam("eps", 5, "0.") +
+    flannParam("sorted", 15, "1");
+  
+  private final String mName;
+  private final int mFeatureDetectorType;
+  private final int mDescriptorExtractorType;
+  private final int mDescriptorMatcherType;
+  private final int mKeypointBudget;
+  private final float mMaxMatchDistanceRatio;
+  private final double mReprojectionThreshold;
+  private final float mAbsentDistance;
+  private final float mUncertainDistance;
+  
+  // keypointBudget caps the keypoints kept per image, or 0 for no cap.
+  // maxMatchDistanceRatio is Lowe's ratio test threshold between the best
+  // and second-best match, and reprojectionThreshold the maximum error
+  // of a homography inlier, in pixels. A frame whose best match is
+  // farther than absentDistance is taken not to show the target, and one
+  // farther than uncertainDistance is not used to update it.
+  public DetectionConfig(final String name, final int featureDetectorType,
+      final int descriptorExtractorType, final int descriptorMatcherType,
+      final int keypointBudget, final float maxMatchDistanceRatio,
+      final double reprojectionThreshold, final float absentDistance,
+      final float uncertainDistance) {
+    mName = name;
+    mFeatureDetectorType = featureDetectorType;
+    mDescriptorExtractorType = descriptorExtractorType;
+    mDescriptorMatcherType = descriptorMatcherType;
+    mKeypointBudget = keypointBudget;
+    mMaxMatchDistanceRatio = maxMatchDistanceRatio;
+    mReprojectionThreshold = reprojectionThreshold;
+    mAbsentDistance = absentDistance;
+    mUncertainDistance = uncertainDistance;
+  }
+  
+  // Returns null if no preset has the name
+  public static DetectionConfig forName(final String name) {
+    for(final DetectionConfig config : PRESETS) {
+      if(config.mName.equals(name)) {
+        return config;
+      }
+    }
+    return null;
+  }
+  
+  public DetectionConfig withKeypointBudget(final int keypointBudget) {
+    return new DetectionConfig(mName, mFeatureDetectorType,
+        mDescriptorExtractorType, mDescriptorMatcherType, keypointBudget,
+        mMaxMatchDistanceRatio, mReprojectionThreshold, mAbsentDistance,
+        mUncertainDistance);
+  }
+  
+  public String getName() {
+    return mName;
+  }
+  
+  // Names every setting that reference features depend on
+  public String getFeatureKey() {
+    return mFeatureDetectorType + ":" + mDescriptorExtractorType + ":" +
+        mKeypointBudget;
+  }
+  
+  public int getKeypointBudget() {
+    return mKeypointBudget;
+  }
+  
+  public float getMaxMatchDistanceRatio() {
+    return mMaxMatchDistanceRatio;
+  }
+  
+  public double getReprojectionThreshold() {
+    return mReprojectionThreshold;
+  }
+  
+  public float getAbsentDistance() {
+    return mAbsentDistance;
+  }
+  
+  public float getUncertainDistance() {
+    return mUncertainDistance;
+  }
+  
+  // The budget is applied by a KeypointSelector after detection, which
+  // can change it from frame to frame. ORB caps its own keypoints, so it
+  // is only asked to leave the selector some spare ones to choose from.
+  public FeatureDetector createFeatureDetector() {
+    final FeatureDetector detector =
+        FeatureDetector.create(mFeatureDetectorType);
+    if(mFeatureDetectorType == FeatureDetector.ORB && mKeypointBudget > 0) {
+      readParams(detector,
+          "nFeatures: " + ORB_OVERSAMPLING * mKeypointBudget);
+    }
+    return detector;
+  }
+  
+  public DescriptorExtractor createDescriptorExtractor() {
+    return DescriptorExtractor.create(mDescriptorExtractorType);
+  }
+  
+  public DescriptorMatcher createDescriptorMatcher() {
+    final DescriptorMatcher matcher =
+        DescriptorMatcher.create(mDescriptorMatcherType);
+    if(mDescriptorMatcherType == DescriptorMatcher.FLANNBASED) {
+      // The default KD-tree index cannot hold binary descriptors
+      final File params = writeParams(LSH_PARAMS);
+      matcher.read(params.getPath());
+      params.delete();
+    }
+    return matcher;
+  }
+  
+  public RatioTestMatcher createRatioTestMatcher() {
+    if(mDescriptorMatcherType == DescriptorMatcher.BRUTEFORCE_HAMMING) {
+      return new RatioTestMatcher(mMaxMatchDistanceRatio, true);
+    }
+    return new RatioTestMatcher(createDescriptorMatcher(),
+        mMaxMatchDistanceRatio, true);
+  }
+  
+  // OpenCV 2.4 only reads the algorithm from an entry of type 23, and
+  // ignores types it does not know
+  private static String flannParam(final String name, final int type,
+      final String value) {
+    return "   -\n" +
+        "      name: " + name + "\n" +
+        "      type: " + type + "\n" +
+        "      value: " + value + "\n";
+  }
+  
+  private static void readParams(final FeatureDetector detector,
+      final String params) {
+    final File file = writeParams(params);
+    detector.read(file.getPath());
+    file.delete();
+  }
+  
+  // The Java bindings can only set algorithm parameters from a file
+  private static File writeParams(final String params) {
+    try {
+      final File file = File.createTempFile("detection", ".yml");
+      final Writer writer = new FileWriter(file);
+      try {
+        writer.write("%YAML:1.0\n");
+        writer.write(params);
+      } finally {
+        writer.close();
+      }
+      return file;
+    } catch(IOException e) {
+      throw new IllegalStateException(
+          "Cannot write detection parameters", e);
+    }
+  }
+  
+  @Override
+  public String toString() {
+    return mKeypointBudget > 0 ? mName + "/" + mKeypointBudget : mName;
+  }
+}
@@ -0,0 +1,97 @@
+package com.tutorials.secondsight.filters.detection;
+
+import java.util.Arrays;
+
+import org.opencv.core.CvType;
+import org.opencv.core.MatOfKeyPoint;
+
+// Caps a set of keypoints at a budget while keeping them spread over the
+// image: the image is split into a grid of about budget / POINTS_PER_CELL
+// cells, each cell keeps its strongest keypoints up to an equal share,
+// and the share left unused by sparse cells goes to the strongest of the
+// remaining keypoints anywhere. Reuses its buffers between calls.
+public class KeypointSelector {
+  private static final int POINTS_PER_CELL = 4;
+  // Offset of the response in a row of a MatOfKeyPoint
+  private static final int RESPONSE_FIELD = 4;
+  
+  private float[] mData = new float[0];
+  private float[] mSelectedData = new float[0];
+  private long[] mOrder = new long[0];
+  private boolean[] mIsSelected = new boolean[0];
+  private int[] mCellCounts = new int[0];
+  
+  // Keeps at most budget of the keypoints, which were found in an image
+  // of the given size; returns the number kept
+  public int select(final MatOfKeyPoint keypoints, final int width,
+      final int height, final int budget) {
+    final int count = (int)keypoints.total();
+    if(budget <= 0 || count <= budget) {
+      return count;
+    }
+    final int fields = ReferenceTarget.KEYPOINT_FIELDS;
+    if(mData.length < fields * count) {
+      mData = new float[fields * count];
+      mOrder = new long[count];
+      mIsSelected = new boolean[count];
+    }
+    if(mSelectedData.length < fields * budget) {
+      mSelectedData = new float[fields * budget];
+    }
+    keypoints.get(0, 0, mData);
+    
+    // Strongest first; STAR gives dark blobs negative responses, so the
+    // magnitude is what counts. Non-negative floats order like their bits.
+    for(int i = 0; i < count; i++) {
+      final float strength = Math.abs(mData[fields * i + RESPONSE_FIELD]);
+      mOrder[i] = ((long)Float.floatToIntBits(strength) << 32) | i;
+      mIsSelected[i] = false;
+    }
+    Arrays.sort(mOrder, 0, count);
+    
+    final double cellCount = Math.max(1, budget / POINTS_PER_CELL);
+    final double aspect = width / (double)Math.max(1, height);
+    final int gridCols =
+        Math.max(1, (int)Math.round(Math.sqrt(cellCount * aspect)));
+    final int gridRows = Math.max(1, (int)Math.round(cellCount / gridCols));
+    final int cellShare = (budget + gridCols * gridRows - 1) /
+        (gridCols * gridRows);
+    if(mCellCounts.length < gridCols * gridRows) {
+      mCellCounts = new int[gridCols * gridRows];
+    }
+    Arrays.fill(mCellCounts, 0, gridCols * gridRows, 0);
+    
+    int selectedCount = 0;
+    for(int i = count - 1; i >= 0 && selectedCount < budget; i--) {
+      final int index = (int)mOrder[i];
+      final float x = mData[fields * index];
+      final float y = mData[fields * index + 1];
+      final int col = Math.min(gridCols - 1,
+          Math.max(0, (int)(x * gridCols / width)));
+      final int row = Math.min(gridRows - 1,
+          Math.max(0, (int)(y * gridRows / height)));
+      final int cell = row * gridCols + col;
+      if(mCellCounts[cell] < cellShare) {
+        mCellCounts[cell]++;
+        mIsSelected[index] = true;
+        copy(index, selectedCount++);
+      }
+    }
+    for(int i = count - 1; i >= 0 && selectedCount < budget; i--) {
+      final int index = (int)mOrder[i];
+      if(!mIsSelected[index]) {
+        copy(index, selectedCount++);
+      }
+    }
+    
+    keypoints.create(selectedCount, 1, CvType.CV_32FC(fields));
+    keypoints.put(0, 0, mSelectedData);
+    return selectedCount;
+  }
+  
+  private void copy(final int from, final int to) {
+    final int fields = ReferenceTarget.KEYPOINT_FIELDS;
+    System.arraycopy(mData, fields * from, mSelectedData, fields * to,
+        fields);
+  }
+}
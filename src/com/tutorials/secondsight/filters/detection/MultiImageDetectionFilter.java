@@ -0,0 +1,229 @@
+package com.tutorials.secondsight.filters.detection;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.FeatureDetector;
+import org.opencv.imgproc.Imgproc;
+
+import com.tutorials.secondsight.filters.Filter;
+
+public class MultiImageDetectionFilter implements Filter {
+  // Number of floats per row of a MatOfDMatch
+  private static final int DMATCH_FIELDS = 4;
+  
+  private final ReferenceDatabase mDatabase;
+  
+  private final MatOfKeyPoint mSceneKeypoints = new MatOfKeyPoint();
+  private final Mat mSceneDescriptors = new Mat();
+  private final Mat mGraySrc = new Mat();
+  private final MatOfDMatch mMatches = new MatOfDMatch();
+  private final MatOfPoint2f mGoodReferencePoints = new MatOfPoint2f();
+  private final MatOfPoint2f mGoodScenePoints = new MatOfPoint2f();
+  private final Mat mCandidateSceneCorners = new Mat(4, 1, CvType.CV_32FC2);
+  private final MatOfPoint mIntSceneCorners = new MatOfPoint();
+  
+  private final FeatureDetector mFeatureDetector =
+    FeatureDetector.create(FeatureDetector.STAR);
+  private final DescriptorExtractor mDescriptorExtractor =
+    DescriptorExtractor.create(DescriptorExtractor.FREAK);
+  
+  private float[] mSceneKeypointData = new float[0];
+  private float[] mMatchData = new float[0];
+  private float[] mGoodReferenceCoords = new float[0];
+  private float[] mGoodSceneCoords = new float[0];
+  private float[] mMinDists = new float[0];
+  private int[] mGoodMatchOffsets = new int[0];
+  private float[] mPointSlice = new float[0];
+  private final float[] mCornerData = new float[8];
+  
+  // Indices and corner quads of the targets found in the last frame
+  private int[] mDetectedTargets = new int[0];
+  private float[] mDetectedCorners = new float[0];
+  private int mDetectedCount;
+  
+  private final Scalar mLineColor = new Scalar(0, 255, 0);
+  
+  public MultiImageDetectionFilter(final ReferenceDatabase database) {
+    mDatabase = database;
+  }
+  
+  public int getDetectedCount() {
+    return mDetectedCount;
+  }
+  
+  public ReferenceTarget getDetectedTarget(final int i) {
+    return mDatabase.get(mDetectedTargets[i]);
+  }
+  
+  // Copies the i-th detected quad into corners as x0, y0, ..., x3, y3
+  public void getDetectedCorners(final int i, final float[] corners) {
+    System.arraycopy(mDetectedCorners, 8 * i, corners, 0, 8);
+  }
+  
+  @Override
+  public void apply(Mat src, Mat dst) {
+    Imgproc.cvtColor(src, mGraySrc, Imgproc.COLOR_RGBA2GRAY);
+    mFeatureDetector.detect(mGraySrc, mSceneKeypoints);
+    mDescriptorExtractor.compute(mGraySrc, mSceneKeypoints, mSceneDescriptors);
+    mDetectedCount = 0;
+    if(!mSceneDescriptors.empty()) {
+      // One lookup in the shared index covers every target
+      mDatabase.match(mSceneDescriptors, mMatches);
+      findSceneCorners();
+    }
+    draw(src, dst);
+  }
+  
+  private void findSceneCorners() {
+    final int targetCount = mDatabase.size();
+    final int matchCount = (int)mMatches.total();
+    if(mMinDists.length < targetCount) {
+      mMinDists = new float[targetCount];
+      mGoodMatchOffsets = new int[targetCount + 1];
+      mDetectedTargets = new int[targetCount];
+      mDetectedCorners = new float[8 * targetCount];
+    }
+    if(mMatchData.length < DMATCH_FIELDS * matchCount) {
+      mMatchData = new float[DMATCH_FIELDS * matchCount];
+      mGoodReferenceCoords = new float[2 * matchCount];
+      mGoodSceneCoords = new float[2 * matchCount];
+      mPointSlice = new float[2 * matchCount];
+    }
+    final int keypointFloats =
+        ReferenceTarget.KEYPOINT_FIELDS * (int)mSceneKeypoints.total();
+    if(mSceneKeypointData.length < keypointFloats) {
+      mSceneKeypointData = new float[keypointFloats];
+    }
+    mMatches.get(0, 0, mMatchData);
+    mSceneKeypoints.get(0, 0, mSceneKeypointData);
+    
+    // Find each target's best match distance
+    for(int t = 0; t < targetCount; t++) {
+      mMinDists[t] = Float.MAX_VALUE;
+    }
+    for(int i = 0; i < matchCount; i++) {
+      final int t = (int)mMatchData[DMATCH_FIELDS * i + 2];
+      final float dist = mMatchData[DMATCH_FIELDS * i + 3];
+      if(t >= 0 && t < targetCount && dist < mMinDists[t]) {
+        mMinDists[t] = dist;
+      }
+    }
+    
+    // Bucket the good matches by target
+    for(int t = 0; t <= targetCount; t++) {
+      mGoodMatchOffsets[t] = 0;
+    }
+    for(int i = 0; i < matchCount; i++) {
+      final int t = (int)mMatchData[DMATCH_FIELDS * i + 2];
+      if(isGoodMatch(i, t, targetCount)) {
+        mGoodMatchOffsets[t + 1]++;
+      }
+    }
+    for(int t = 0; t < targetCount; t++) {
+      mGoodMatchOffsets[t + 1] += mGoodMatchOffsets[t];
+    }
+    for(int i = 0; i < matchCount; i++) {
+      final int t = (int)mMatchData[DMATCH_FIELDS * i + 2];
+      if(!isGoodMatch(i, t, targetCount)) {
+        continue;
+      }
+      final int sceneIdx = (int)mMatchData[DMATCH_FIELDS * i];
+      final int referenceIdx = (int)mMatchData[DMATCH_FIELDS * i + 1];
+      final float[] referenceCoords =
+          mDatabase.get(t).getKeypointCoords();
+      final int j = 2 * mGoodMatchOffsets[t]++;
+      mGoodReferenceCoords[j] = referenceCoords[2 * referenceIdx];
+      mGoodReferenceCoords[j + 1] = referenceCoords[2 * referenceIdx + 1];
+      mGoodSceneCoords[j] =
+          mSceneKeypointData[ReferenceTarget.KEYPOINT_FIELDS * sceneIdx];
+      mGoodSceneCoords[j + 1] =
+          mSceneKeypointData[ReferenceTarget.KEYPOINT_FIELDS * sceneIdx + 1];
+    }
+    
+    // The fill pass advanced each offset to the start of the next bucket
+    int start = 0;
+    for(int t = 0; t < targetCount; t++) {
+      final int end = mGoodMatchOffsets[t];
+      if(end - start >= 4) {
+        findTargetCorners(t, start, end);
+      }
+      start = end;
+    }
+  }
+  
+  private boolean isGoodMatch(final int i, final int t,
+      final int targetCount) {
+    if(t < 0 || t >= targetCount || mMinDists[t] > 25) {
+      // No match, or the target is probably absent
+      return false;
+    }
+    return mMatchData[DMATCH_FIELDS * i + 3] < 1.75 * mMinDists[t];
+  }
+  
+  private void findTargetCorners(final int t, final int start,
+      final int end) {
+    final int count = end - start;
+    mGoodReferencePoints.create(count, 1, CvType.CV_32FC2);
+    mGoodScenePoints.create(count, 1, CvType.CV_32FC2);
+    copyPoints(mGoodReferenceCoords, start, count, mGoodReferencePoints);
+    copyPoints(mGoodSceneCoords, start, count, mGoodScenePoints);
+    
+    final Mat h = Calib3d.findHomography(mGoodReferencePoints,
+        mGoodScenePoints, Calib3d.FM_RANSAC, 5);
+    if(h.empty()) {
+      h.release();
+      return;
+    }
+    Core.perspectiveTransform(mDatabase.get(t).getCorners(),
+        mCandidateSceneCorners, h);
+    h.release();
+    mCandidateSceneCorners.convertTo(mIntSceneCorners, CvType.CV_32S);
+    if(!Imgproc.isContourConvex(mIntSceneCorners)) {
+      return;
+    }
+    mDetectedTargets[mDetectedCount] = t;
+    mCandidateSceneCorners.get(0, 0, mCornerData);
+    System.arraycopy(mCornerData, 0, mDetectedCorners, 8 * mDetectedCount, 8);
+    mDetectedCount++;
+  }
+  
+  private void copyPoints(final float[] coords, final int start,
+      final int count, final Mat points) {
+    if(start == 0) {
+      points.put(0, 0, coords);
+      return;
+    }
+    System.arraycopy(coords, 2 * start, mPointSlice, 0, 2 * count);
+    points.put(0, 0, mPointSlice);
+  }
+  
+  protected void draw(final Mat src, final Mat dst) {
+    if(dst != src) {
+      src.copyTo(dst);
+    }
+    for(int i = 0; i < mDetectedCount; i++) {
+      final int c = 8 * i;
+      for(int j = 0; j < 4; j++) {
+        final int k = (j + 1) % 4;
+        Core.line(dst,
+            new Point(mDetectedCorners[c + 2 * j],
+                mDetectedCorners[c + 2 * j + 1]),
+            new Point(mDetectedCorners[c + 2 * k],
+                mDetectedCorners[c + 2 * k + 1]),
+            mLineColor, 4);
+      }
+      Core.putText(dst, getDetectedTarget(i).getName(),
+          new Point(mDetectedCorners[c], mDetectedCorners[c + 1]),
+          Core.FONT_HERSHEY_SIMPLEX, 1.0, mLineColor, 2);
+    }
+  }
+}
@@ -0,0 +1,279 @@
+package com.tutorials.secondsight.filters.detection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.features2d.DescriptorMatcher;
+
+public class RatioTestMatcher {
+  // Number of floats per row of a MatOfDMatch
+  private static final int DMATCH_FIELDS = 4;
+  
+  // Null if the descriptors are compared here by Hamming distance
+  private final DescriptorMatcher mDescriptorMatcher;
+  private final float mMaxRatio;
+  private final boolean mIsCrossChecked;
+  
+  private final List<MatOfDMatch> mKnnMatches = new ArrayList<MatOfDMatch>();
+  private final MatOfDMatch mMatches = new MatOfDMatch();
+  private final MatOfDMatch mReverseMatches = new MatOfDMatch();
+  private final float[] mNeighbors = new float[2 * DMATCH_FIELDS];
+  private float[] mMatchData = new float[0];
+  private int[] mBestQueryForTrain = new int[0];
+  
+  // Hamming search state: each descriptor as 64-bit words, and the
+  // nearest row and the two best distances found for each searched row
+  private byte[] mDescriptorBytes = new byte[0];
+  private long[] mQueryWords = new long[0];
+  private long[] mTrainWords = new long[0];
+  private int mWordsPerRow;
+  private int[] mNearest = new int[0];
+  private int[] mNearestDistances = new int[0];
+  private int[] mSecondDistances = new int[0];
+  
+  private int[] mQueryIndices = new int[0];
+  private int[] mTrainIndices = new int[0];
+  private float[] mDistances = new float[0];
+  private int mCount;
+  private float mMinDistance;
+  
+  // Keeps a match only if its distance is below maxRatio times that of
+  // the second-best candidate (0 to disable) and, if crossChecked, only
+  // if the query descriptor is also the train descriptor's best match
+  public RatioTestMatcher(final DescriptorMatcher descriptorMatcher,
+      final float maxRatio, final boolean crossChecked) {
+    mDescriptorMatcher = descriptorMatcher;
+    mMaxRatio = maxRatio;
+    mIsCrossChecked = crossChecked;
+  }
+  
+  // Matches 8-bit binary descriptors by brute-force Hamming distance
+  // without going through a DescriptorMatcher, whose Java knnMatch
+  // allocates a Mat per query descriptor
+  public RatioTestMatcher(final float maxRatio, final boolean crossChecked) {
+    this(null, maxRatio, crossChecked);
+  }
+  
+  // Returns the number of matches that pass
+  public int match(final Mat queryDescriptors, final Mat trainDescriptors) {
+    mCount = 0;
+    mMinDistance = Float.MAX_VALUE;
+    final int queryCount = queryDescriptors.rows();
+    if(queryCount == 0 || trainDescriptors.rows() == 0) {
+      return 0;
+    }
+    if(mQueryIndices.length < queryCount) {
+      mQueryIndices = new int[queryCount];
+      mTrainIndices = new int[queryCount];
+      mDistances = new float[queryCount];
+      mMatchData = new float[DMATCH_FIELDS * queryCount];
+    }
+    
+    if(mDescriptorMatcher == null) {
+      matchHamming(queryDescriptors, trainDescriptors);
+    } else if(mMaxRatio > 0) {
+      mDescriptorMatcher.knnMatch(queryDescriptors, trainDescriptors,
+          mKnnMatches, 2);
+      for(int i = 0; i < mKnnMatches.size(); i++) {
+        final MatOfDMatch neighbors = mKnnMatches.get(i);
+        final int neighborCount = (int)neighbors.total();
+        if(neighborCount > 0) {
+          neighbors.get(0, 0, mNeighbors);
+          final float distance = mNeighbors[3];
+          if(distance < mMinDistance) {
+            mMinDistance = distance;
+          }
+          if(neighborCount < 2 ||
+              distance < mMaxRatio * mNeighbors[DMATCH_FIELDS + 3]) {
+            add((int)mNeighbors[0], (int)mNeighbors[1], distance);
+          }
+        }
+        // Free the native buffer now rather than on finalization
+        neighbors.release();
+      }
+      mKnnMatches.clear();
+    } else {
+      mDescriptorMatcher.match(queryDescriptors, trainDescriptors, mMatches);
+      final int matchCount = (int)mMatches.total();
+      mMatches.get(0, 0, mMatchData);
+      for(int i = 0; i < matchCount; i++) {
+        final int j = DMATCH_FIELDS * i;
+        final float distance = mMatchData[j + 3];
+        if(distance < mMinDistance) {
+          mMinDistance = distance;
+        }
+        add((int)mMatchData[j], (int)mMatchData[j + 1], distance);
+      }
+    }
+    
+    if(mIsCrossChecked && mCount > 0) {
+      crossCheck(queryDescriptors, trainDescriptors);
+    }
+    return mCount;
+  }
+  
+  private void matchHamming(final Mat queryDescriptors,
+      final Mat trainDescriptors) {
+    final int queryCount = queryDescriptors.rows();
+    final int trainCount = trainDescriptors.rows();
+    mQueryWords = pack(queryDescriptors, mQueryWords);
+    final int queryWordsPerRow = mWordsPerRow;
+    mTrainWords = pack(trainDescriptors, mTrainWords);
+    if(mWordsPerRow != queryWordsPerRow) {
+      throw new IllegalArgumentException("Descriptor sizes differ");
+    }
+    findNearest(mQueryWords, queryCount, mTrainWords, trainCount,
+        mMaxRatio > 0);
+    for(int i = 0; i < queryCount; i++) {
+      final float distance = mNearestDistances[i];
+      if(distance < mMinDistance) {
+        mMinDistance = distance;
+      }
+      // With a single train descriptor the second distance stays at
+      // Integer.MAX_VALUE, so the match passes as it does with knnMatch
+      if(mMaxRatio <= 0 || distance < mMaxRatio * mSecondDistances[i]) {
+        add(i, mNearest[i], distance);
+      }
+    }
+  }
+  
+  // Copies the rows of a continuous 8-bit descriptor Mat into words,
+  // zero-padding the last word of each row, and sets mWordsPerRow;
+  // returns words or, if it is too small, a new array
+  private long[] pack(final Mat descriptors, final long[] words) {
+    final int rows = descriptors.rows();
+    final int rowBytes = descriptors.cols() * descriptors.channels();
+    final int wordsPerRow = (rowBytes + 7) / 8;
+    if(mDescriptorBytes.length < rows * rowBytes) {
+      mDescriptorBytes = new byte[rows * rowBytes];
+    }
+    final long[] packed = words.length < rows * wordsPerRow ?
+        new long[rows * wordsPerRow] : words;
+    descriptors.get(0, 0, mDescriptorBytes);
+    for(int row = 0; row < rows; row++) {
+      for(int w = 0; w < wordsPerRow; w++) {
+        final int start = row * rowBytes + 8 * w;
+        final int end = Math.min(start + 8, (row + 1) * rowBytes);
+        long word = 0;
+        for(int i = start; i < end; i++) {
+          word |= (long)(mDescriptorBytes[i] & 0xff) << (8 * (i - start));
+        }
+        packed[row * wordsPerRow + w] = word;
+      }
+    }
+    mWordsPerRow = wordsPerRow;
+    return packed;
+  }
+  
+  // For each row of from, finds the nearest row of to and the two best
+  // distances, or only the best if !needsSecond. A candidate is dropped as
+  // soon as its partial distance reaches the distance it has to beat.
+  private void findNearest(final long[] from, final int fromCount,
+      final long[] to, final int toCount, final boolean needsSecond) {
+    if(mNearest.length < fromCount) {
+      mNearest = new int[fromCount];
+      mNearestDistances = new int[fromCount];
+      mSecondDistances = new int[fromCount];
+    }
+    final int wordsPerRow = mWordsPerRow;
+    for(int i = 0; i < fromCount; i++) {
+      final int fromStart = i * wordsPerRow;
+      int nearest = -1;
+      int best = Integer.MAX_VALUE;
+      int second = Integer.MAX_VALUE;
+      for(int j = 0; j < toCount; j++) {
+        final int bound = needsSecond ? second : best;
+        final int toStart = j * wordsPerRow;
+        int distance = 0;
+        for(int w = 0; w < wordsPerRow && distance < bound; w++) {
+          distance += Long.bitCount(from[fromStart + w] ^ to[toStart + w]);
+        }
+        if(distance >= bound) {
+          continue;
+        }
+        if(distance < best) {
+          second = best;
+          best = distance;
+          nearest = j;
+        } else {
+          second = distance;
+        }
+      }
+      mNearest[i] = nearest;
+      mNearestDistances[i] = best;
+      mSecondDistances[i] = second;
+    }
+  }
+  
+  private void add(final int queryIndex, final int trainIndex,
+      final float distance) {
+    mQueryIndices[mCount] = queryIndex;
+    mTrainIndices[mCount] = trainIndex;
+    mDistances[mCount] = distance;
+    mCount++;
+  }
+  
+  private void crossCheck(final Mat queryDescriptors,
+      final Mat trainDescriptors) {
+    final int trainCount = trainDescriptors.rows();
+    if(mBestQueryForTrain.length < trainCount) {
+      mBestQueryForTrain = new int[trainCount];
+    }
+    if(mDescriptorMatcher == null) {
+      // The descriptors are still packed from matchHamming()
+      findNearest(mTrainWords, trainCount, mQueryWords,
+          queryDescriptors.rows(), false);
+      System.arraycopy(mNearest, 0, mBestQueryForTrain, 0, trainCount);
+    } else {
+      mDescriptorMatcher.match(trainDescriptors, queryDescriptors,
+          mReverseMatches);
+      if(mMatchData.length < DMATCH_FIELDS * trainCount) {
+        mMatchData = new float[DMATCH_FIELDS * trainCount];
+      }
+      for(int i = 0; i < trainCount; i++) {
+        mBestQueryForTrain[i] = -1;
+      }
+      final int reverseCount = (int)mReverseMatches.total();
+      mReverseMatches.get(0, 0, mMatchData);
+      for(int i = 0; i < reverseCount; i++) {
+        final int j = DMATCH_FIELDS * i;
+        mBestQueryForTrain[(int)mMatchData[j]] = (int)mMatchData[j + 1];
+      }
+    }
+    
+    int keptCount = 0;
+    for(int i = 0; i < mCount; i++) {
+      if(mBestQueryForTrain[mTrainIndices[i]] == mQueryIndices[i]) {
+        mQueryIndices[keptCount] = mQueryIndices[i];
+        mTrainIndices[keptCount] = mTrainIndices[i];
+        mDistances[keptCount] = mDistances[i];
+        keptCount++;
+      }
+    }
+    mCount = keptCount;
+  }
+  
+  public int getCount() {
+    return mCount;
+  }
+  
+  public int getQueryIndex(final int i) {
+    return mQueryIndices[i];
+  }
+  
+  public int getTrainIndex(final int i) {
+    return mTrainIndices[i];
+  }
+  
+  public float getDistance(final int i) {
+    return mDistances[i];
+  }
+  
+  // Best distance among all candidates of the last match(), before
+  // filtering
+  public float getMinDistance() {
+    return mMinDistance;
+  }
+}
@@ -0,0 +1,73 @@
+package com.tutorials.secondsight.filters.detection;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.features2d.DescriptorMatcher;
+
+public class ReferenceDatabase {
+  private final List<ReferenceTarget> mTargets =
+    new ArrayList<ReferenceTarget>();
+  private final DescriptorMatcher mDescriptorMatcher;
+  private boolean mIsTrained;
+  
+  // workDir holds the index configuration while it is read
+  public ReferenceDatabase(final File workDir) throws IOException {
+    mDescriptorMatcher =
+        DescriptorMatcher.create(DescriptorMatcher.FLANNBASED);
+    final File params = File.createTempFile("lsh", ".yml", workDir);
+    try {
+      final FileWriter writer = new FileWriter(params);
+      try {
+        // FLANN locality-sensitive hashing, suited to binary descriptors
+        writer.write("%YAML:1.0\n");
+        writer.write(DetectionConfig.LSH_PARAMS);
+      } finally {
+        writer.close();
+      }
+      mDescriptorMatcher.read(params.getAbsolutePath());
+    } finally {
+      params.delete();
+    }
+  }
+  
+  public synchronized int add(final ReferenceTarget target) {
+    mTargets.add(target);
+    mIsTrained = false;
+    return mTargets.size() - 1;
+  }
+  
+  public synchronized int size() {
+    return mTargets.size();
+  }
+  
+  public synchronized ReferenceTarget get(final int index) {
+    return mTargets.get(index);
+  }
+  
+  // Builds one index over the descriptors of every target
+  public synchronized void train() {
+    final List<Mat> descriptors = new ArrayList<Mat>(mTargets.size());
+    for(final ReferenceTarget target : mTargets) {
+      descriptors.add(target.getDescriptors());
+    }
+    mDescriptorMatcher.clear();
+    mDescriptorMatcher.add(descriptors);
+    mDescriptorMatcher.train();
+    mIsTrained = true;
+  }
+  
+  // Each match's imgIdx is the index of the matched target
+  public synchronized void match(final Mat sceneDescriptors,
+      final MatOfDMatch matches) {
+    if(!mIsTrained) {
+      train();
+    }
+    mDescriptorMatcher.match(sceneDescriptors, matches);
+  }
+}
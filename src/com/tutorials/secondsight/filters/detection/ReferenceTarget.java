@@ -0,0 +1,152 @@
+package com.tutorials.secondsight.filters.detection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.FeatureDetector;
+import org.opencv.imgproc.Imgproc;
+
+public class ReferenceTarget {
+  // Number of floats per row of a MatOfKeyPoint
+  public static final int KEYPOINT_FIELDS = 7;
+  
+  private final String mName;
+  private final Mat mImage = new Mat();
+  private final MatOfKeyPoint mKeypoints;
+  private final Mat mDescriptors;
+  private final Mat mCorners = new Mat(4, 1, CvType.CV_32FC2);
+  private float[] mKeypointCoords;
+  
+  // Takes ownership of the BGR image
+  public ReferenceTarget(final String name, final Mat bgrImage,
+      final FeatureDetector featureDetector,
+      final DescriptorExtractor descriptorExtractor) {
+    this(name, bgrImage, featureDetector, descriptorExtractor, 1);
+  }
+  
+  public ReferenceTarget(final String name, final Mat bgrImage,
+      final FeatureDetector featureDetector,
+      final DescriptorExtractor descriptorExtractor, final int scaleLevels) {
+    this(name, bgrImage, featureDetector, descriptorExtractor, scaleLevels,
+        0);
+  }
+  
+  // Takes ownership of the BGR image. Features are found at scaleLevels
+  // successive half sizes, so that distant, small-looking targets still
+  // match, and are all expressed in full-size reference coordinates.
+  // Each level keeps at most keypointBudget keypoints, or all if it is 0.
+  public ReferenceTarget(final String name, final Mat bgrImage,
+      final FeatureDetector featureDetector,
+      final DescriptorExtractor descriptorExtractor, final int scaleLevels,
+      final int keypointBudget) {
+    this(name, bgrImage, new MatOfKeyPoint(), new Mat());
+    final KeypointSelector keypointSelector = new KeypointSelector();
+    Mat gray = new Mat();
+    Imgproc.cvtColor(bgrImage, gray, Imgproc.COLOR_BGR2GRAY);
+    bgrImage.release();
+    
+    final List<Mat> levelDescriptors = new ArrayList<Mat>(scaleLevels);
+    final List<float[]> levelKeypoints = new ArrayList<float[]>(scaleLevels);
+    int keypointCount = 0;
+    for(int level = 0; level < scaleLevels; level++) {
+      if(level > 0) {
+        final Mat smallerGray = new Mat();
+        Imgproc.pyrDown(gray, smallerGray);
+        gray.release();
+        gray = smallerGray;
+      }
+      final MatOfKeyPoint keypoints = new MatOfKeyPoint();
+      final Mat descriptors = new Mat();
+      featureDetector.detect(gray, keypoints);
+      keypointSelector.select(keypoints, gray.cols(), gray.rows(),
+          keypointBudget);
+      descriptorExtractor.compute(gray, keypoints, descriptors);
+      
+      final int count = (int)keypoints.total();
+      final float[] data = new float[count * KEYPOINT_FIELDS];
+      keypoints.get(0, 0, data);
+      keypoints.release();
+      final float scale = 1 << level;
+      for(int i = 0; i < count; i++) {
+        // x, y and size
+        data[KEYPOINT_FIELDS * i] *= scale;
+        data[KEYPOINT_FIELDS * i + 1] *= scale;
+        data[KEYPOINT_FIELDS * i + 2] *= scale;
+      }
+      if(count > 0) {
+        levelKeypoints.add(data);
+        levelDescriptors.add(descriptors);
+        keypointCount += count;
+      }
+    }
+    gray.release();
+    
+    if(keypointCount == 0) {
+      return;
+    }
+    final float[] allKeypoints = new float[keypointCount * KEYPOINT_FIELDS];
+    int offset = 0;
+    for(final float[] data : levelKeypoints) {
+      System.arraycopy(data, 0, allKeypoints, offset, data.length);
+      offset += data.length;
+    }
+    mKeypoints.create(keypointCount, 1, CvType.CV_32FC(KEYPOINT_FIELDS));
+    mKeypoints.put(0, 0, allKeypoints);
+    Core.vconcat(levelDescriptors, mDescriptors);
+  }
+  
+  // Takes ownership of precomputed features
+  public ReferenceTarget(final String name, final Mat bgrImage,
+      final MatOfKeyPoint keypoints, final Mat descriptors) {
+    mName = name;
+    mKeypoints = keypoints;
+    mDescriptors = descriptors;
+    Imgproc.cvtColor(bgrImage, mImage, Imgproc.COLOR_BGR2RGBA);
+    
+    mCorners.put(0, 0, new double[] {0, 0});
+    mCorners.put(1, 0, new double[] {bgrImage.cols(), 0});
+    mCorners.put(2, 0, new double[] {bgrImage.cols(), bgrImage.rows()});
+    mCorners.put(3, 0, new double[] {0, bgrImage.rows()});
+  }
+  
+  public String getName() {
+    return mName;
+  }
+  
+  // RGBA
+  public Mat getImage() {
+    return mImage;
+  }
+  
+  public MatOfKeyPoint getKeypoints() {
+    return mKeypoints;
+  }
+  
+  public Mat getDescriptors() {
+    return mDescriptors;
+  }
+  
+  public Mat getCorners() {
+    return mCorners;
+  }
+  
+  // x and y of each keypoint, read once from the native buffer
+  public synchronized float[] getKeypointCoords() {
+    if(mKeypointCoords == null) {
+      final int count = (int)mKeypoints.total();
+      final float[] keypoints = new float[count * KEYPOINT_FIELDS];
+      mKeypoints.get(0, 0, keypoints);
+      mKeypointCoords = new float[2 * count];
+      for(int i = 0; i < count; i++) {
+        mKeypointCoords[2 * i] = keypoints[KEYPOINT_FIELDS * i];
+        mKeypointCoords[2 * i + 1] = keypoints[KEYPOINT_FIELDS * i + 1];
+      }
+    }
+    return mKeypointCoords;
+  }
+}
@@ -0,0 +1,112 @@
+package com.tutorials.secondsight.filters.lut;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+// Reads 3D LUTs in the Adobe/Resolve .cube text format
+public class CubeFile {
+  private static final int MAX_SIZE = 256;
+  
+  private CubeFile() {
+  }
+  
+  public static Lut3DFilter read(final File file) throws IOException {
+    final InputStream input = new FileInputStream(file);
+    try {
+      return read(input);
+    } finally {
+      input.close();
+    }
+  }
+  
+  public static Lut3DFilter read(final InputStream input) throws IOException {
+    final BufferedReader reader =
+        new BufferedReader(new InputStreamReader(input, "UTF-8"));
+    int size = 0;
+    byte[] table = null;
+    final float[] domain = new float[3];
+    int entryCount = 0;
+    int lineNumber = 0;
+    String line;
+    while((line = reader.readLine()) != null) {
+      lineNumber++;
+      line = line.trim();
+      if(line.length() == 0 || line.startsWith("#") ||
+          line.startsWith("TITLE")) {
+        continue;
+      }
+      final String[] fields = line.split("\\s+");
+      try {
+        if("LUT_3D_SIZE".equals(fields[0])) {
+          size = Integer.parseInt(fields[1]);
+          if(size < 2 || size > MAX_SIZE) {
+            throw new IOException("Unsupported LUT size " + size);
+          }
+          table = new byte[3 * size * size * size];
+        } else if("DOMAIN_MIN".equals(fields[0])) {
+          // The domain is the range of input values the grid spans, which
+          // Lut3DFilter always takes to be the whole 0-255 range
+          parseTriple(fields, domain);
+          checkDomain(domain, 0, line);
+        } else if("DOMAIN_MAX".equals(fields[0])) {
+          parseTriple(fields, domain);
+          checkDomain(domain, 1, line);
+        } else if("LUT_3D_INPUT_RANGE".equals(fields[0])) {
+          if(Float.parseFloat(fields[1]) != 0 ||
+              Float.parseFloat(fields[2]) != 1) {
+            throw new IOException("Unsupported input range: " + line);
+          }
+        } else if("LUT_1D_SIZE".equals(fields[0])) {
+          throw new IOException("1D LUTs are not supported");
+        } else if(Character.isLetter(fields[0].charAt(0))) {
+          // Another keyword
+          continue;
+        } else {
+          if(table == null) {
+            throw new IOException("Table data before LUT_3D_SIZE");
+          }
+          if(3 * entryCount >= table.length) {
+            throw new IOException("Too many table entries");
+          }
+          final float[] rgb = new float[3];
+          parseTriple(fields, rgb);
+          for(int c = 0; c < 3; c++) {
+            table[3 * entryCount + c] = (byte)Math.round(
+                255 * Math.max(0f, Math.min(1f, rgb[c])));
+          }
+          entryCount++;
+        }
+      } catch(NumberFormatException e) {
+        throw new IOException("Malformed line " + lineNumber + ": " + line);
+      } catch(ArrayIndexOutOfBoundsException e) {
+        throw new IOException("Malformed line " + lineNumber + ": " + line);
+      }
+    }
+    if(table == null || 3 * entryCount != table.length) {
+      throw new IOException("Expected " + size + "^3 table entries but got " +
+          entryCount);
+    }
+    return new Lut3DFilter(size, table);
+  }
+  
+  private static void checkDomain(final float[] domain, final float value,
+      final String line) throws IOException {
+    for(int c = 0; c < 3; c++) {
+      if(domain[c] != value) {
+        throw new IOException("Unsupported domain: " + line);
+      }
+    }
+  }
+  
+  private static void parseTriple(final String[] fields, final float[] dst) {
+    // Values may follow a keyword
+    final int start = fields.length - 3;
+    for(int c = 0; c < 3; c++) {
+      dst[c] = Float.parseFloat(fields[start + c]);
+    }
+  }
+}
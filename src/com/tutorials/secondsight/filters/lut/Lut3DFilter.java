@@ -0,0 +1,166 @@
+package com.tutorials.secondsight.filters.lut;
+
+import org.opencv.core.Mat;
+
+import com.tutorials.secondsight.filters.FusedPointwiseFilter;
+import com.tutorials.secondsight.filters.PointwiseFilter;
+
+// Maps each RGB color through a size^3 grid of output colors with
+// tetrahedral interpolation, so any pointwise look costs one lookup
+public class Lut3DFilter implements PointwiseFilter {
+  public static final int DEFAULT_SIZE = 33;
+  
+  private final int mSize;
+  // RGB triples with red varying fastest, then green, then blue, as in
+  // .cube files
+  private final byte[] mTable;
+  // For each channel value, the grid cell's offset into mTable and the
+  // position within the cell, out of 256
+  private final int[] mRedOffsets = new int[256];
+  private final int[] mGreenOffsets = new int[256];
+  private final int[] mBlueOffsets = new int[256];
+  private final int[] mFractions = new int[256];
+  private final FusedPointwiseFilter mBandFilter;
+  
+  public Lut3DFilter(final int size, final byte[] table) {
+    if(size < 2 || table.length != 3 * size * size * size) {
+      throw new IllegalArgumentException("Expected a table of 3 * " +
+          size + "^3 entries");
+    }
+    mSize = size;
+    mTable = table.clone();
+    for(int v = 0; v < 256; v++) {
+      final int position = (v * (size - 1) * 256 + 127) / 255;
+      final int cell = Math.min(position >> 8, size - 2);
+      mFractions[v] = position - (cell << 8);
+      mRedOffsets[v] = 3 * cell;
+      mGreenOffsets[v] = 3 * size * cell;
+      mBlueOffsets[v] = 3 * size * size * cell;
+    }
+    mBandFilter = new FusedPointwiseFilter(this);
+  }
+  
+  // Runs the grid's colors through the stages, in order
+  public static Lut3DFilter bake(final int size,
+      final PointwiseFilter... stages) {
+    final int count = size * size * size;
+    final byte[] rgba = new byte[4 * count];
+    int i = 0;
+    for(int b = 0; b < size; b++) {
+      for(int g = 0; g < size; g++) {
+        for(int r = 0; r < size; r++) {
+          rgba[i++] = (byte)Math.round(r * 255f / (size - 1));
+          rgba[i++] = (byte)Math.round(g * 255f / (size - 1));
+          rgba[i++] = (byte)Math.round(b * 255f / (size - 1));
+          rgba[i++] = (byte)255;
+        }
+      }
+    }
+    for(final PointwiseFilter stage : stages) {
+      stage.applyPixels(rgba, rgba.length);
+    }
+    final byte[] table = new byte[3 * count];
+    for(int j = 0; j < count; j++) {
+      table[3 * j] = rgba[4 * j];
+      table[3 * j + 1] = rgba[4 * j + 1];
+      table[3 * j + 2] = rgba[4 * j + 2];
+    }
+    return new Lut3DFilter(size, table);
+  }
+  
+  public int getSize() {
+    return mSize;
+  }
+  
+  // R, G and B of each grid point, red varying fastest; not a copy
+  public byte[] getTable() {
+    return mTable;
+  }
+  
+  @Override
+  public void applyPixels(final byte[] rgba, final int length) {
+    final byte[] table = mTable;
+    final int redStep = 3;
+    final int greenStep = 3 * mSize;
+    final int blueStep = 3 * mSize * mSize;
+    final int farCorner = redStep + greenStep + blueStep;
+    for(int i = 0; i < length; i += 4) {
+      final int r = rgba[i] & 0xff;
+      final int g = rgba[i + 1] & 0xff;
+      final int b = rgba[i + 2] & 0xff;
+      final int fr = mFractions[r];
+      final int fg = mFractions[g];
+      final int fb = mFractions[b];
+      final int base = mRedOffsets[r] + mGreenOffsets[g] + mBlueOffsets[b];
+      
+      // The cell's tetrahedron that holds the color runs from the near
+      // corner along the axes in order of decreasing fraction
+      final int corner1;
+      final int corner2;
+      final int w0;
+      final int w1;
+      final int w2;
+      final int w3;
+      if(fr >= fg) {
+        if(fg >= fb) {
+          corner1 = redStep;
+          corner2 = redStep + greenStep;
+          w0 = 256 - fr;
+          w1 = fr - fg;
+          w2 = fg - fb;
+          w3 = fb;
+        } else if(fr >= fb) {
+          corner1 = redStep;
+          corner2 = redStep + blueStep;
+          w0 = 256 - fr;
+          w1 = fr - fb;
+          w2 = fb - fg;
+          w3 = fg;
+        } else {
+          corner1 = blueStep;
+          corner2 = blueStep + redStep;
+          w0 = 256 - fb;
+          w1 = fb - fr;
+          w2 = fr - fg;
+          w3 = fg;
+        }
+      } else {
+        if(fb >= fg) {
+          corner1 = blueStep;
+          corner2 = blueStep + greenStep;
+          w0 = 256 - fb;
+          w1 = fb - fg;
+          w2 = fg - fr;
+          w3 = fr;
+        } else if(fb >= fr) {
+          corner1 = greenStep;
+          corner2 = greenStep + blueStep;
+          w0 = 256 - fg;
+          w1 = fg - fb;
+          w2 = fb - fr;
+          w3 = fr;
+        } else {
+          corner1 = greenStep;
+          corner2 = greenStep + redStep;
+          w0 = 256 - fg;
+          w1 = fg - fr;
+          w2 = fr - fb;
+          w3 = fb;
+        }
+      }
+      
+      for(int c = 0; c < 3; c++) {
+        final int j = base + c;
+        rgba[i + c] = (byte)((w0 * (table[j] & 0xff) +
+            w1 * (table[j + corner1] & 0xff) +
+            w2 * (table[j + corner2] & 0xff) +
+            w3 * (table[j + farCorner] & 0xff) + 128) >> 8);
+      }
+    }
+  }
+  
+  @Override
+  public void apply(final Mat src, final Mat dst) {
+    mBandFilter.apply(src, dst);
+  }
+}
@@ -0,0 +1,41 @@
+package com.tutorials.secondsight.filters.mixer;
+
+import org.opencv.core.Mat;
+
+import com.tutorials.secondsight.filters.FusedPointwiseFilter;
+import com.tutorials.secondsight.filters.PointwiseFilter;
+
+// Replaces blue with the least (MIN) or the greatest (MAX) of the red,
+// green and blue channels, and keeps red and green
+public class BlueCombineFilter implements PointwiseFilter {
+  public static final int MIN = 0;
+  public static final int MAX = 1;
+  
+  private final int mOp;
+  private final FusedPointwiseFilter mBandFilter;
+  
+  public BlueCombineFilter(final int op) {
+    if(op != MIN && op != MAX) {
+      throw new IllegalArgumentException("Unknown op: " + op);
+    }
+    mOp = op;
+    mBandFilter = new FusedPointwiseFilter(this);
+  }
+  
+  @Override
+  public void applyPixels(final byte[] rgba, final int length) {
+    final boolean isMax = mOp == MAX;
+    for(int i = 0; i < length; i += 4) {
+      final int r = rgba[i] & 0xff;
+      final int g = rgba[i + 1] & 0xff;
+      final int b = rgba[i + 2] & 0xff;
+      rgba[i + 2] = (byte)(isMax ? Math.max(b, Math.max(r, g)) :
+          Math.min(b, Math.min(r, g)));
+    }
+  }
+  
+  @Override
+  public void apply(final Mat src, final Mat dst) {
+    mBandFilter.apply(src, dst);
+  }
+}
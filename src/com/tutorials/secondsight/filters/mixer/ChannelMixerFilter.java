@@ -0,0 +1,48 @@
+package com.tutorials.secondsight.filters.mixer;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import com.tutorials.secondsight.filters.PointwiseFilter;
+
+public class ChannelMixerFilter implements PointwiseFilter {
+  private final Mat mMatrix = new Mat(4, 4, CvType.CV_32FC1);
+  // 16.16 fixed-point copy of the matrix, for the fused pixel path
+  private final int[] mWeights = new int[16];
+  
+  // Each row of the row-major 4x4 matrix mixes R, G, B, A into one
+  // output channel
+  public ChannelMixerFilter(final float[] matrix) {
+    if(matrix.length != 16) {
+      throw new IllegalArgumentException(
+          "Expected a 4x4 matrix, got " + matrix.length + " values");
+    }
+    mMatrix.put(0, 0, matrix);
+    for(int i = 0; i < 16; i++) {
+      mWeights[i] = Math.round(matrix[i] * 65536);
+    }
+  }
+  
+  @Override
+  public void applyPixels(final byte[] rgba, final int length) {
+    final int[] w = mWeights;
+    for(int i = 0; i < length; i += 4) {
+      final int r = rgba[i] & 0xff;
+      final int g = rgba[i + 1] & 0xff;
+      final int b = rgba[i + 2] & 0xff;
+      final int a = rgba[i + 3] & 0xff;
+      for(int c = 0, j = 0; c < 4; c++, j += 4) {
+        final int v =
+            (w[j] * r + w[j + 1] * g + w[j + 2] * b + w[j + 3] * a + 32768)
+            >> 16;
+        rgba[i + c] = (byte)(v < 0 ? 0 : (v > 255 ? 255 : v));
+      }
+    }
+  }
+  
+  @Override
+  public void apply(final Mat src, final Mat dst) {
+    Core.transform(src, dst, mMatrix);
+  }
+}
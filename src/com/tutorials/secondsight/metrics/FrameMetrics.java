@@ -0,0 +1,206 @@
+package com.tutorials.secondsight.metrics;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+import com.tutorials.secondsight.filters.MatPool;
+
+// Collects per-stage latencies, frame rate, dropped frames and detection
+// statistics over a window that lasts until the next reset(). Recording
+// never allocates, and may happen on any thread.
+public class FrameMetrics {
+  private final String[] mStageNames;
+  private final LatencyHistogram[] mStageLatencies;
+  
+  private long mWindowStartNanos;
+  private long mFrameCount;
+  private long mDroppedFrameCount;
+  private long mDroppedFrameCountAtReset;
+  
+  private long mDetectionFrameCount;
+  private long mDetectionHitCount;
+  private long mDetectionRunCount;
+  private long mKeypointTotal;
+  private long mMatchTotal;
+  private long mInlierTotal;
+  
+  // -1 until the first setPhotoBacklog()
+  private int mPendingPhotoCount = -1;
+  private long mRefusedPhotoCount;
+  private long mRefusedPhotoCountAtReset;
+  
+  private volatile MatPool mMatPool;
+  
+  public FrameMetrics(final String... stageNames) {
+    mStageNames = stageNames.clone();
+    mStageLatencies = new LatencyHistogram[stageNames.length];
+    for(int i = 0; i < stageNames.length; i++) {
+      mStageLatencies[i] = new LatencyHistogram();
+    }
+    mWindowStartNanos = System.nanoTime();
+  }
+  
+  // Adds the pool's buffer usage to the formatted window
+  public void setMatPool(final MatPool matPool) {
+    mMatPool = matPool;
+  }
+  
+  public int getStageCount() {
+    return mStageNames.length;
+  }
+  
+  public String getStageName(final int stage) {
+    return mStageNames[stage];
+  }
+  
+  public LatencyHistogram getStageLatency(final int stage) {
+    return mStageLatencies[stage];
+  }
+  
+  public void recordStage(final int stage, final long nanos) {
+    mStageLatencies[stage].record(nanos);
+  }
+  
+  public synchronized void recordFrame() {
+    mFrameCount++;
+  }
+  
+  // Takes a running total, such as FramePipeline.getDroppedFrameCount()
+  public synchronized void setDroppedFrameCount(final long count) {
+    mDroppedFrameCount = count;
+  }
+  
+  // Takes the photos waiting to be encoded and a running total of the
+  // refused ones, such as PhotoEncoder.getRefusedCount()
+  public synchronized void setPhotoBacklog(final int pendingCount,
+      final long refusedCount) {
+    mPendingPhotoCount = pendingCount;
+    mRefusedPhotoCount = refusedCount;
+  }
+  
+  // Called once per frame by a detection filter. When detection (rather
+  // than tracking) ran, keypointCount is positive and the other counts
+  // describe its matches.
+  public synchronized void recordDetection(final boolean isTargetFound,
+      final int keypointCount, final int matchCount, final int inlierCount) {
+    mDetectionFrameCount++;
+    if(isTargetFound) {
+      mDetectionHitCount++;
+    }
+    if(keypointCount > 0) {
+      mDetectionRunCount++;
+      mKeypointTotal += keypointCount;
+      mMatchTotal += matchCount;
+      mInlierTotal += inlierCount;
+    }
+  }
+  
+  public synchronized void reset() {
+    for(final LatencyHistogram latency : mStageLatencies) {
+      latency.reset();
+    }
+    mWindowStartNanos = System.nanoTime();
+    mFrameCount = 0;
+    mDroppedFrameCountAtReset = mDroppedFrameCount;
+    mRefusedPhotoCountAtReset = mRefusedPhotoCount;
+    mDetectionFrameCount = 0;
+    mDetectionHitCount = 0;
+    mDetectionRunCount = 0;
+    mKeypointTotal = 0;
+    mMatchTotal = 0;
+    mInlierTotal = 0;
+  }
+  
+  public synchronized double getFramesPerSecond() {
+    final long elapsedNanos = System.nanoTime() - mWindowStartNanos;
+    return elapsedNanos <= 0 ? 0 : mFrameCount * 1e9 / elapsedNanos;
+  }
+  
+  public synchronized long getDroppedFrameCount() {
+    return mDroppedFrameCount - mDroppedFrameCountAtReset;
+  }
+  
+  // The fraction of detection frames in which the target was found
+  public synchronized double getDetectionHitRate() {
+    return mDetectionFrameCount == 0 ? 0 :
+        mDetectionHitCount / (double)mDetectionFrameCount;
+  }
+  
+  public synchronized double getMeanKeypointCount() {
+    return mDetectionRunCount == 0 ? 0 :
+        mKeypointTotal / (double)mDetectionRunCount;
+  }
+  
+  public synchronized double getMeanMatchCount() {
+    return mDetectionRunCount == 0 ? 0 :
+        mMatchTotal / (double)mDetectionRunCount;
+  }
+  
+  // The fraction of matches that fit the homography
+  public synchronized double getInlierRatio() {
+    return mMatchTotal == 0 ? 0 : mInlierTotal / (double)mMatchTotal;
+  }
+  
+  public synchronized int getPendingPhotoCount() {
+    return mPendingPhotoCount;
+  }
+  
+  public synchronized long getRefusedPhotoCount() {
+    return mRefusedPhotoCount - mRefusedPhotoCountAtReset;
+  }
+  
+  public synchronized boolean hasPhotoBacklog() {
+    return mPendingPhotoCount >= 0;
+  }
+  
+  public synchronized boolean hasDetection() {
+    return mDetectionFrameCount > 0;
+  }
+  
+  // Formats the window as human-readable lines
+  public String[] format() {
+    final boolean hasDetection = hasDetection();
+    final boolean hasPhotoBacklog = hasPhotoBacklog();
+    final MatPool matPool = mMatPool;
+    final String[] lines = new String[mStageNames.length +
+        (hasDetection ? 2 : 1) + (matPool != null ? 1 : 0) +
+        (hasPhotoBacklog ? 1 : 0)];
+    lines[0] = String.format(Locale.US, "%.1f fps, %d dropped",
+        getFramesPerSecond(), getDroppedFrameCount());
+    for(int i = 0; i < mStageNames.length; i++) {
+      final LatencyHistogram latency = mStageLatencies[i];
+      lines[i + 1] = String.format(Locale.US,
+          "%s: p50 %.1f p95 %.1f p99 %.1f ms", mStageNames[i],
+          latency.getPercentileNanos(0.5) / 1e6,
+          latency.getPercentileNanos(0.95) / 1e6,
+          latency.getPercentileNanos(0.99) / 1e6);
+    }
+    int line = mStageNames.length + 1;
+    if(matPool != null) {
+      lines[line++] = String.format(Locale.US,
+          "buffers: %d (%.1f MB), peak %d leased (%.1f MB), %d leaked",
+          matPool.getAllocatedCount(), matPool.getAllocatedBytes() / 1e6,
+          matPool.getHighWaterCount(), matPool.getHighWaterBytes() / 1e6,
+          matPool.getLeakCount());
+    }
+    if(hasPhotoBacklog) {
+      lines[line++] = String.format(Locale.US,
+          "photos: %d waiting to be saved, %d refused",
+          getPendingPhotoCount(), getRefusedPhotoCount());
+    }
+    if(hasDetection) {
+      lines[line] = String.format(Locale.US,
+          "detection: %.0f%% hits, %.0f keypoints, %.0f matches, " +
+          "%.0f%% inliers", 100 * getDetectionHitRate(),
+          getMeanKeypointCount(), getMeanMatchCount(),
+          100 * getInlierRatio());
+    }
+    return lines;
+  }
+  
+  public void dump(final PrintWriter writer) {
+    for(final String line : format()) {
+      writer.println(line);
+    }
+  }
+}
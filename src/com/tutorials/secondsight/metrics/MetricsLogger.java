@@ -0,0 +1,76 @@
+package com.tutorials.secondsight.metrics;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Date;
+
+import android.util.Log;
+
+// Periodically appends FrameMetrics to a file and starts a new window
+public class MetricsLogger extends Thread {
+  private static final String TAG = "MetricsLogger";
+  // A longer log is moved aside to <name>.old before appending
+  private static final long MAX_FILE_BYTES = 1024 * 1024;
+  
+  private final FrameMetrics mMetrics;
+  private final File mFile;
+  private final long mIntervalMillis;
+  
+  public MetricsLogger(final FrameMetrics metrics, final File file,
+      final long intervalMillis) {
+    super(TAG);
+    setDaemon(true);
+    mMetrics = metrics;
+    mFile = file;
+    mIntervalMillis = intervalMillis;
+  }
+  
+  @Override
+  public void run() {
+    while(true) {
+      try {
+        Thread.sleep(mIntervalMillis);
+      } catch(InterruptedException e) {
+        return;
+      }
+      dump();
+    }
+  }
+  
+  // Stops logging and waits for a dump in progress to finish
+  public void finish() {
+    interrupt();
+    try {
+      join();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  private void dump() {
+    if(mFile.length() > MAX_FILE_BYTES) {
+      final File oldFile = new File(mFile.getPath() + ".old");
+      if(!mFile.renameTo(oldFile)) {
+        Log.e(TAG, "Failed to rotate " + mFile);
+      }
+    }
+    PrintWriter writer = null;
+    try {
+      writer = new PrintWriter(new FileWriter(mFile, true));
+      writer.println("# " + new Date());
+      mMetrics.dump(writer);
+      if(writer.checkError()) {
+        Log.e(TAG, "Failed to write metrics to " + mFile);
+      }
+    } catch(IOException e) {
+      Log.e(TAG, "Failed to open " + mFile, e);
+    } finally {
+      if(writer != null) {
+        writer.close();
+      }
+    }
+    mMetrics.reset();
+  }
+}
@@ -0,0 +1,45 @@
+package com.tutorials.secondsight.metrics;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+
+// Draws FrameMetrics onto frames. The text is only reformatted a few
+// times per second, so drawing does not allocate on most frames.
+public class MetricsOverlay {
+  private static final long REFRESH_INTERVAL_NANOS = 500000000L;
+  private static final int FONT_FACE = Core.FONT_HERSHEY_PLAIN;
+  // Text size at a frame height of 480 rows
+  private static final double FONT_SCALE = 1;
+  private static final double LINE_HEIGHT = 18;
+  
+  private final FrameMetrics mMetrics;
+  private final Scalar mTextColor = new Scalar(255, 255, 0, 255);
+  private final Scalar mShadowColor = new Scalar(0, 0, 0, 255);
+  private final Point mOrigin = new Point();
+  private String[] mLines = new String[0];
+  private long mLastRefreshNanos;
+  
+  public MetricsOverlay(final FrameMetrics metrics) {
+    mMetrics = metrics;
+  }
+  
+  public void draw(final Mat dst) {
+    final long now = System.nanoTime();
+    if(mLines.length == 0 ||
+        now - mLastRefreshNanos >= REFRESH_INTERVAL_NANOS) {
+      mLines = mMetrics.format();
+      mLastRefreshNanos = now;
+    }
+    final double scale = dst.rows() / 480.0;
+    for(int i = 0; i < mLines.length; i++) {
+      mOrigin.x = 8 * scale;
+      mOrigin.y = (i + 1) * LINE_HEIGHT * scale;
+      Core.putText(dst, mLines[i], mOrigin, FONT_FACE, FONT_SCALE * scale,
+          mShadowColor, 3);
+      Core.putText(dst, mLines[i], mOrigin, FONT_FACE, FONT_SCALE * scale,
+          mTextColor, 1);
+    }
+  }
+}
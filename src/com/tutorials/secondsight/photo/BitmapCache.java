@@ -0,0 +1,35 @@
+package com.tutorials.secondsight.photo;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+
+// Keeps recently shown bitmaps up to a budget in bytes. Evicted bitmaps
+// are left to the garbage collector, since a view may still show them.
+public class BitmapCache extends LruCache<String, Bitmap> {
+  // Share of the app's heap that the shared cache may use
+  private static final int HEAP_FRACTION = 8;
+  
+  private static BitmapCache sSharedCache;
+  
+  public static synchronized BitmapCache getShared(final Context ctx) {
+    if(sSharedCache == null) {
+      final ActivityManager activityManager =
+          (ActivityManager)ctx.getSystemService(Context.ACTIVITY_SERVICE);
+      sSharedCache = new BitmapCache(
+          activityManager.getMemoryClass() * 1024 * 1024 / HEAP_FRACTION);
+    }
+    return sSharedCache;
+  }
+  
+  public BitmapCache(final int maxBytes) {
+    super(maxBytes);
+  }
+  
+  @Override
+  protected int sizeOf(final String key, final Bitmap bitmap) {
+    // getByteCount() needs API level 12
+    return bitmap.getRowBytes() * bitmap.getHeight();
+  }
+}
@@ -0,0 +1,149 @@
+package com.tutorials.secondsight.photo;
+
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.AsyncTask;
+import android.util.Log;
+import android.widget.ImageView;
+
+// Decodes photos off the main thread at about the size they are shown,
+// so memory use depends on the view rather than on the photo
+public class PhotoLoader {
+  private static final String TAG = "PhotoLoader";
+  
+  private final BitmapCache mCache;
+  private LoadTask mTask;
+  
+  public PhotoLoader(final BitmapCache cache) {
+    mCache = cache;
+  }
+  
+  // Shows the photo in view, scaled to fit within width x height or, if
+  // isCropped, cropped to fill it. A cached bitmap is shown immediately.
+  public void load(final String path, final ImageView view, final int width,
+      final int height, final boolean isCropped) {
+    cancel();
+    final String key = path + "@" + width + "x" + height +
+        (isCropped ? "c" : "f");
+    final Bitmap cachedBitmap = mCache.get(key);
+    if(cachedBitmap != null) {
+      view.setImageBitmap(cachedBitmap);
+      return;
+    }
+    mTask = new LoadTask(key, path, view, width, height, isCropped);
+    mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+  }
+  
+  public void cancel() {
+    if(mTask != null) {
+      mTask.cancel(false);
+      mTask = null;
+    }
+  }
+  
+  // The largest power of two that keeps the decoded size at least as
+  // large as the requested size
+  static int getSampleSize(final int srcWidth, final int srcHeight,
+      final int dstWidth, final int dstHeight) {
+    int sampleSize = 1;
+    while(srcWidth / (2 * sampleSize) >= dstWidth &&
+        srcHeight / (2 * sampleSize) >= dstHeight) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+  
+  private static Bitmap decode(final String path, final int width,
+      final int height, final boolean isCropped) throws IOException {
+    final BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeFile(path, options);
+    final int srcWidth = options.outWidth;
+    final int srcHeight = options.outHeight;
+    if(srcWidth <= 0 || srcHeight <= 0) {
+      throw new IOException("Cannot decode " + path);
+    }
+    options.inJustDecodeBounds = false;
+    // Photos have no alpha, so half the memory of ARGB_8888 suffices
+    options.inPreferredConfig = Bitmap.Config.RGB_565;
+    
+    if(!isCropped) {
+      // Fit the whole photo
+      final double scale = Math.min(width / (double)srcWidth,
+          height / (double)srcHeight);
+      options.inSampleSize = getSampleSize(srcWidth, srcHeight,
+          (int)Math.ceil(srcWidth * scale), (int)Math.ceil(srcHeight * scale));
+      return BitmapFactory.decodeFile(path, options);
+    }
+    
+    // Decode only the centered region with the view's aspect ratio
+    final double scale = Math.max(width / (double)srcWidth,
+        height / (double)srcHeight);
+    final int regionWidth = Math.min(srcWidth, (int)Math.ceil(width / scale));
+    final int regionHeight =
+        Math.min(srcHeight, (int)Math.ceil(height / scale));
+    final int left = (srcWidth - regionWidth) / 2;
+    final int top = (srcHeight - regionHeight) / 2;
+    options.inSampleSize =
+        getSampleSize(regionWidth, regionHeight, width, height);
+    final BitmapRegionDecoder decoder =
+        BitmapRegionDecoder.newInstance(path, false);
+    try {
+      return decoder.decodeRegion(new Rect(left, top, left + regionWidth,
+          top + regionHeight), options);
+    } finally {
+      decoder.recycle();
+    }
+  }
+  
+  private class LoadTask extends AsyncTask<Void, Void, Bitmap> {
+    private final String mKey;
+    private final String mPath;
+    private final ImageView mView;
+    private final int mWidth;
+    private final int mHeight;
+    private final boolean mIsCropped;
+    
+    LoadTask(final String key, final String path, final ImageView view,
+        final int width, final int height, final boolean isCropped) {
+      mKey = key;
+      mPath = path;
+      mView = view;
+      mWidth = width;
+      mHeight = height;
+      mIsCropped = isCropped;
+    }
+    
+    @Override
+    protected Bitmap doInBackground(final Void... params) {
+      try {
+        final Bitmap bitmap = decode(mPath, mWidth, mHeight, mIsCropped);
+        if(bitmap != null) {
+          mCache.put(mKey, bitmap);
+        }
+        return bitmap;
+      } catch(IOException e) {
+        Log.e(TAG, "Failed to decode " + mPath, e);
+        return null;
+      } catch(OutOfMemoryError e) {
+        Log.e(TAG, "Out of memory decoding " + mPath);
+        mCache.evictAll();
+        return null;
+      }
+    }
+    
+    @Override
+    protected void onPostExecute(final Bitmap bitmap) {
+      if(mTask == this) {
+        mTask = null;
+      }
+      if(bitmap != null) {
+        mView.setImageBitmap(bitmap);
+      }
+    }
+  }
+}
@@ -0,0 +1,253 @@
+package com.tutorials.secondsight.pipeline;
+
+import java.util.ArrayDeque;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import android.util.Log;
+
+import com.tutorials.secondsight.filters.Filter;
+import com.tutorials.secondsight.metrics.FrameMetrics;
+
+public class FramePipeline {
+  private static final String TAG = "FramePipeline";
+  
+  private final Filter[] mStages;
+  private final FrameQueue[] mQueues;
+  private final StageThread[] mThreads;
+  private final Mat[] mRing;
+  private final ArrayDeque<Mat> mFreeFrames;
+  private Mat mCompletedFrame;
+  private Mat mDisplayedFrame;
+  private long mDroppedFrameCount;
+  private volatile boolean mIsRunning;
+  private volatile FrameMetrics mMetrics;
+  
+  // queueDepths[i] is the number of frames that may wait for stages[i]
+  // before the oldest one is dropped
+  public FramePipeline(final int[] queueDepths, final Filter... stages) {
+    if(queueDepths.length != stages.length) {
+      throw new IllegalArgumentException(
+          "Expected one queue depth per stage");
+    }
+    mStages = stages.clone();
+    mQueues = new FrameQueue[stages.length];
+    mThreads = new StageThread[stages.length];
+    int ringSize = 0;
+    for(int i = 0; i < stages.length; i++) {
+      if(queueDepths[i] < 1) {
+        throw new IllegalArgumentException("Queue depths must be positive");
+      }
+      mQueues[i] = new FrameQueue(queueDepths[i]);
+      // Each stage holds its queue plus the frame it is working on
+      ringSize += queueDepths[i] + 1;
+    }
+    // Plus the frames being captured, completed and displayed
+    ringSize += 3;
+    mRing = new Mat[ringSize];
+    mFreeFrames = new ArrayDeque<Mat>(ringSize);
+  }
+  
+  public synchronized void start(final int width, final int height) {
+    if(mIsRunning) {
+      return;
+    }
+    for(int i = 0; i < mRing.length; i++) {
+      mRing[i] = new Mat(height, width, CvType.CV_8UC4);
+      mFreeFrames.add(mRing[i]);
+    }
+    mIsRunning = true;
+    for(int i = 0; i < mStages.length; i++) {
+      mThreads[i] = new StageThread(i);
+      mThreads[i].start();
+    }
+  }
+  
+  public void stop() {
+    synchronized(this) {
+      if(!mIsRunning) {
+        return;
+      }
+      mIsRunning = false;
+    }
+    for(final Thread thread : mThreads) {
+      thread.interrupt();
+    }
+    for(final Thread thread : mThreads) {
+      try {
+        thread.join();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized(this) {
+      for(final FrameQueue queue : mQueues) {
+        queue.clear();
+      }
+      mFreeFrames.clear();
+      mCompletedFrame = null;
+      mDisplayedFrame = null;
+      for(int i = 0; i < mRing.length; i++) {
+        mRing[i].release();
+        mRing[i] = null;
+      }
+    }
+  }
+  
+  // Called on the capture thread; copies the frame into the ring
+  public boolean submit(final Mat rgba) {
+    final Mat frame;
+    synchronized(this) {
+      if(!mIsRunning) {
+        return false;
+      }
+      frame = mFreeFrames.poll();
+      if(frame == null) {
+        mDroppedFrameCount++;
+        return false;
+      }
+    }
+    rgba.copyTo(frame);
+    enqueue(0, frame);
+    return true;
+  }
+  
+  // Called on the capture thread; copies the newest processed frame into
+  // dst, or leaves dst untouched if no frame has been processed yet
+  public boolean render(final Mat dst) {
+    final Mat frame;
+    synchronized(this) {
+      if(mCompletedFrame != null) {
+        if(mDisplayedFrame != null) {
+          mFreeFrames.add(mDisplayedFrame);
+        }
+        mDisplayedFrame = mCompletedFrame;
+        mCompletedFrame = null;
+      }
+      frame = mDisplayedFrame;
+    }
+    if(frame == null) {
+      return false;
+    }
+    frame.copyTo(dst);
+    return true;
+  }
+  
+  // Records the latency of stages[i] as stage i of the metrics
+  public void setMetrics(final FrameMetrics metrics) {
+    mMetrics = metrics;
+  }
+  
+  // The time the slowest stage took for its last frame, which bounds the
+  // rate at which the pipeline can complete frames
+  public long getBottleneckNanos() {
+    long bottleneckNanos = 0;
+    for(final StageThread thread : mThreads) {
+      if(thread != null) {
+        bottleneckNanos = Math.max(bottleneckNanos, thread.mLastNanos);
+      }
+    }
+    return bottleneckNanos;
+  }
+  
+  public synchronized long getDroppedFrameCount() {
+    return mDroppedFrameCount;
+  }
+  
+  private void enqueue(final int stageIndex, final Mat frame) {
+    final Mat dropped = mQueues[stageIndex].offer(frame);
+    if(dropped != null) {
+      recycle(dropped, true);
+    }
+  }
+  
+  private synchronized void complete(final Mat frame) {
+    if(mCompletedFrame != null) {
+      // The renderer never showed the previous frame
+      mFreeFrames.add(mCompletedFrame);
+      mDroppedFrameCount++;
+    }
+    mCompletedFrame = frame;
+  }
+  
+  private synchronized void recycle(final Mat frame, final boolean isDrop) {
+    mFreeFrames.add(frame);
+    if(isDrop) {
+      mDroppedFrameCount++;
+    }
+  }
+  
+  private class StageThread extends Thread {
+    private final int mStageIndex;
+    volatile long mLastNanos;
+    
+    StageThread(final int stageIndex) {
+      super(TAG + "-" + stageIndex);
+      mStageIndex = stageIndex;
+    }
+    
+    @Override
+    public void run() {
+      final Filter stage = mStages[mStageIndex];
+      while(mIsRunning) {
+        final Mat frame;
+        try {
+          frame = mQueues[mStageIndex].take();
+        } catch(InterruptedException e) {
+          return;
+        }
+        final long startTime = System.nanoTime();
+        try {
+          stage.apply(frame, frame);
+        } catch(RuntimeException e) {
+          Log.e(TAG, "Stage " + mStageIndex + " failed", e);
+          recycle(frame, true);
+          continue;
+        }
+        mLastNanos = System.nanoTime() - startTime;
+        final FrameMetrics metrics = mMetrics;
+        if(metrics != null) {
+          metrics.recordStage(mStageIndex, mLastNanos);
+        }
+        if(mStageIndex + 1 < mStages.length) {
+          enqueue(mStageIndex + 1, frame);
+        } else {
+          complete(frame);
+        }
+      }
+    }
+  }
+  
+  private static class FrameQueue {
+    private final ArrayDeque<Mat> mFrames;
+    private final int mDepth;
+    
+    FrameQueue(final int depth) {
+      mFrames = new ArrayDeque<Mat>(depth);
+      mDepth = depth;
+    }
+    
+    // Returns the oldest frame if it had to be dropped to make room
+    synchronized Mat offer(final Mat frame) {
+      Mat dropped = null;
+      if(mFrames.size() >= mDepth) {
+        dropped = mFrames.pollFirst();
+      }
+      mFrames.addLast(frame);
+      notifyAll();
+      return dropped;
+    }
+    
+    synchronized Mat take() throws InterruptedException {
+      while(mFrames.isEmpty()) {
+        wait();
+      }
+      return mFrames.pollFirst();
+    }
+    
+    synchronized void clear() {
+      mFrames.clear();
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package com.tutorials.secondsight.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.tutorials.secondsight.filters.ImageDetectionFilter;
+import com.tutorials.secondsight.filters.convolution.StrokeEdgesFilter;
+
+// Trades processing quality for frame rate. It is fed the processing time
+// of each frame and steps between quality levels so that the time stays
+// within the target frame budget, with a wide enough gap between the
+// thresholds to step down and up that it does not oscillate.
+public class QualityGovernor {
+  // From full quality down: the scale of the processing heights, the
+  // stretch of the redetection interval and the scale of the keypoint
+  // budget at each level
+  private static final double[] HEIGHT_SCALES = { 1, 0.85, 0.7, 0.55, 0.4 };
+  private static final double[] INTERVAL_SCALES = { 1, 1.5, 2, 2.5, 3 };
+  private static final double[] KEYPOINT_SCALES = { 1, 0.8, 0.6, 0.5, 0.4 };
+  // Smoothing of the per-frame processing time
+  private static final double COST_SMOOTHING = 0.1;
+  // Quality is restored only when frames take less than this share of
+  // the budget
+  private static final double UPGRADE_HEADROOM = 0.6;
+  // Frames to wait after a change, so the smoothed cost reflects it
+  private static final int SETTLE_FRAMES = 30;
+  
+  private final long mBudgetNanos;
+  private final int mDetectionHeight;
+  private final int mRedetectionInterval;
+  private final int mEdgesHeight;
+  private final int mKeypointBudget;
+  private final List<ImageDetectionFilter> mDetectionFilters =
+    new ArrayList<ImageDetectionFilter>();
+  private final List<StrokeEdgesFilter> mEdgesFilters =
+    new ArrayList<StrokeEdgesFilter>();
+  private double mCostNanos;
+  private int mFramesSinceChange;
+  private int mLevel;
+  
+  // The other arguments are the full-quality settings of the filters
+  public QualityGovernor(final double targetFps, final int detectionHeight,
+      final int redetectionInterval, final int edgesHeight,
+      final int keypointBudget) {
+    mBudgetNanos = (long)(1e9 / targetFps);
+    mDetectionHeight = detectionHeight;
+    mRedetectionInterval = redetectionInterval;
+    mEdgesHeight = edgesHeight;
+    mKeypointBudget = keypointBudget;
+  }
+  
+  public synchronized void addDetectionFilter(
+      final ImageDetectionFilter filter) {
+    mDetectionFilters.add(filter);
+    applyLevel(filter);
+  }
+  
+  public synchronized void addEdgesFilter(final StrokeEdgesFilter filter) {
+    mEdgesFilters.add(filter);
+    applyLevel(filter);
+  }
+  
+  // 0 is full quality
+  public synchronized int getLevel() {
+    return mLevel;
+  }
+  
+  // Called once per displayed frame with the time spent processing it
+  public synchronized void update(final long frameNanos) {
+    if(mCostNanos == 0) {
+      mCostNanos = frameNanos;
+    } else {
+      mCostNanos += COST_SMOOTHING * (frameNanos - mCostNanos);
+    }
+    mFramesSinceChange++;
+    if(mFramesSinceChange < SETTLE_FRAMES) {
+      return;
+    }
+    if(mCostNanos > mBudgetNanos && mLevel + 1 < HEIGHT_SCALES.length) {
+      setLevel(mLevel + 1);
+    } else if(mCostNanos < UPGRADE_HEADROOM * mBudgetNanos && mLevel > 0) {
+      setLevel(mLevel - 1);
+    }
+  }
+  
+  private void setLevel(final int level) {
+    mLevel = level;
+    mFramesSinceChange = 0;
+    for(final ImageDetectionFilter filter : mDetectionFilters) {
+      applyLevel(filter);
+    }
+    for(final StrokeEdgesFilter filter : mEdgesFilters) {
+      applyLevel(filter);
+    }
+  }
+  
+  private void applyLevel(final ImageDetectionFilter filter) {
+    filter.setDetectionHeight(scaleHeight(mDetectionHeight));
+    filter.setRedetectionInterval(
+        (int)Math.round(mRedetectionInterval * INTERVAL_SCALES[mLevel]));
+    // 0, meaning no cap, stays 0
+    if(mKeypointBudget > 0) {
+      filter.setKeypointBudget(Math.max(1,
+          (int)Math.round(mKeypointBudget * KEYPOINT_SCALES[mLevel])));
+    }
+  }
+  
+  private void applyLevel(final StrokeEdgesFilter filter) {
+    filter.setDetectionHeight(scaleHeight(mEdgesHeight));
+  }
+  
+  // 0, meaning full size, stays 0
+  private int scaleHeight(final int height) {
+    if(height <= 0) {
+      return height;
+    }
+    return Math.max(1, (int)Math.round(height * HEIGHT_SCALES[mLevel]));
+  }
+}
@@ -0,0 +1,390 @@
+package com.tutorials.secondsight.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.FeatureDetector;
+import org.opencv.highgui.Highgui;
+import org.opencv.highgui.VideoCapture;
+import org.opencv.imgproc.Imgproc;
+
+import com.tutorials.secondsight.filters.Filter;
+import com.tutorials.secondsight.filters.FilterChain;
+import com.tutorials.secondsight.filters.ImageDetectionFilter;
+import com.tutorials.secondsight.filters.NoneFilter;
+import com.tutorials.secondsight.filters.ParallelFilter;
+import com.tutorials.secondsight.filters.convolution.StrokeEdgesFilter;
+import com.tutorials.secondsight.filters.curve.CrossProcessCurveFilter;
+import com.tutorials.secondsight.filters.curve.PortraCurveFilter;
+import com.tutorials.secondsight.filters.curve.ProviaCurveFilter;
+import com.tutorials.secondsight.filters.curve.VelviaCurveFilter;
+import com.tutorials.secondsight.filters.detection.ReferenceTarget;
+import com.tutorials.secondsight.filters.lut.CubeFile;
+import com.tutorials.secondsight.filters.mixer.RecolorCVMFilter;
+import com.tutorials.secondsight.filters.mixer.RecolorRCFilter;
+import com.tutorials.secondsight.filters.mixer.RecolorRGVFilter;
+
+// Runs filter chains over image and video files without a camera or a
+// device, e.g. on a Linux server with the desktop OpenCV Java bindings
+public class BatchProcessor {
+  private static final String USAGE =
+    "Usage: BatchProcessor [--filters name,...] [--reference image]\n" +
+    "    [--workers n] [--queue n] [--format png|jpg] outputDir input...\n" +
+    "Filters: none, portra, provia, velvia, crossprocess, rc, rgv, cvm,\n" +
+    "    strokeedges, strokeedges360, detection (needs --reference),\n" +
+    "    cube:file.cube";
+  private static final List<String> VIDEO_EXTENSIONS =
+    Arrays.asList("avi", "mp4", "mov", "mkv", "mpg", "mpeg", "webm");
+  private static final int JPEG_QUALITY = 95;
+  private static final int PNG_COMPRESSION = 3;
+  private static final long PROGRESS_INTERVAL_MS = 5000;
+  
+  // Marks the end of a frame queue
+  private static final Frame END_OF_FRAMES = new Frame(null, null);
+  
+  private final ParallelFilter.Factory mChainFactory;
+  private final File mOutputDir;
+  private final String mFormat;
+  private final int mWorkerCount;
+  private final BlockingQueue<Frame> mDecodedFrames;
+  private final BlockingQueue<Frame> mFilteredFrames;
+  private final AtomicLong mFilteredCount = new AtomicLong();
+  private final AtomicLong mFailedCount = new AtomicLong();
+  private long mWrittenCount;
+  
+  private static class Frame {
+    final Mat mImage;
+    final File mOutputFile;
+    
+    Frame(final Mat image, final File outputFile) {
+      mImage = image;
+      mOutputFile = outputFile;
+    }
+  }
+  
+  // chainFactory is called once per worker, since filters keep per-frame
+  // state. Each queue holds at most queueDepth frames.
+  public BatchProcessor(final ParallelFilter.Factory chainFactory,
+      final File outputDir, final String format, final int workerCount,
+      final int queueDepth) {
+    mChainFactory = chainFactory;
+    mOutputDir = outputDir;
+    mFormat = format;
+    mWorkerCount = workerCount;
+    mDecodedFrames = new ArrayBlockingQueue<Frame>(queueDepth);
+    mFilteredFrames = new ArrayBlockingQueue<Frame>(queueDepth);
+  }
+  
+  // Decodes on the calling thread while workers filter and a writer
+  // encodes. Returns the number of frames written.
+  public long process(final List<File> inputs) throws InterruptedException {
+    if(!mOutputDir.isDirectory() && !mOutputDir.mkdirs()) {
+      throw new IllegalArgumentException(
+          "Cannot create output directory " + mOutputDir);
+    }
+    final Thread[] workers = new Thread[mWorkerCount];
+    for(int i = 0; i < workers.length; i++) {
+      workers[i] = new Thread(new Worker(mChainFactory.create()),
+          "BatchWorker-" + i);
+      workers[i].start();
+    }
+    final Thread writer = new Thread(new Writer(), "BatchWriter");
+    writer.start();
+    
+    final long startTime = System.nanoTime();
+    final ProgressReporter reporter = new ProgressReporter(startTime);
+    reporter.start();
+    try {
+      for(final File input : inputs) {
+        decode(input);
+      }
+    } finally {
+      for(int i = 0; i < workers.length; i++) {
+        mDecodedFrames.put(END_OF_FRAMES);
+      }
+      for(final Thread worker : workers) {
+        worker.join();
+      }
+      mFilteredFrames.put(END_OF_FRAMES);
+      writer.join();
+      reporter.interrupt();
+    }
+    final double seconds = (System.nanoTime() - startTime) / 1e9;
+    System.out.println(String.format(Locale.US,
+        "Wrote %d frames in %.1f s (%.1f fps), %d failed",
+        mWrittenCount, seconds, mWrittenCount / seconds, mFailedCount.get()));
+    return mWrittenCount;
+  }
+  
+  private void decode(final File input) throws InterruptedException {
+    if(input.isDirectory()) {
+      final File[] children = input.listFiles();
+      if(children != null) {
+        Arrays.sort(children);
+        for(final File child : children) {
+          decode(child);
+        }
+      }
+      return;
+    }
+    final String name = input.getName();
+    final int dot = name.lastIndexOf('.');
+    final String baseName = dot > 0 ? name.substring(0, dot) : name;
+    final String extension =
+        dot > 0 ? name.substring(dot + 1).toLowerCase(Locale.US) : "";
+    if(VIDEO_EXTENSIONS.contains(extension)) {
+      decodeVideo(input, baseName);
+      return;
+    }
+    final Mat bgr = Highgui.imread(input.getPath(),
+        Highgui.CV_LOAD_IMAGE_COLOR);
+    if(bgr.empty()) {
+      System.err.println("Skipping unreadable file " + input);
+      return;
+    }
+    enqueue(bgr, new File(mOutputDir, baseName + "." + mFormat));
+  }
+  
+  private void decodeVideo(final File input, final String baseName)
+      throws InterruptedException {
+    final VideoCapture capture = new VideoCapture(input.getPath());
+    if(!capture.isOpened()) {
+      System.err.println("Skipping unreadable video " + input);
+      return;
+    }
+    try {
+      for(int index = 0; ; index++) {
+        final Mat bgr = new Mat();
+        if(!capture.read(bgr) || bgr.empty()) {
+          break;
+        }
+        enqueue(bgr, new File(mOutputDir, String.format(Locale.US,
+            "%s_%06d.%s", baseName, index, mFormat)));
+      }
+    } finally {
+      capture.release();
+    }
+  }
+  
+  private void enqueue(final Mat bgr, final File outputFile)
+      throws InterruptedException {
+    // The filters expect camera-style RGBA frames
+    final Mat rgba = new Mat();
+    Imgproc.cvtColor(bgr, rgba, Imgproc.COLOR_BGR2RGBA);
+    bgr.release();
+    mDecodedFrames.put(new Frame(rgba, outputFile));
+  }
+  
+  private class Worker implements Runnable {
+    private final Filter mChain;
+    
+    Worker(final Filter chain) {
+      mChain = chain;
+    }
+    
+    @Override
+    public void run() {
+      try {
+        while(true) {
+          final Frame frame = mDecodedFrames.take();
+          if(frame == END_OF_FRAMES) {
+            return;
+          }
+          try {
+            mChain.apply(frame.mImage, frame.mImage);
+            Imgproc.cvtColor(frame.mImage, frame.mImage,
+                Imgproc.COLOR_RGBA2BGR);
+          } catch(RuntimeException e) {
+            System.err.println("Failed to filter " + frame.mOutputFile +
+                ": " + e);
+            frame.mImage.release();
+            mFailedCount.incrementAndGet();
+            continue;
+          }
+          mFilteredCount.incrementAndGet();
+          mFilteredFrames.put(frame);
+        }
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+  
+  private class Writer implements Runnable {
+    @Override
+    public void run() {
+      final MatOfInt params = "png".equals(mFormat) ?
+          new MatOfInt(Highgui.CV_IMWRITE_PNG_COMPRESSION, PNG_COMPRESSION) :
+          new MatOfInt(Highgui.CV_IMWRITE_JPEG_QUALITY, JPEG_QUALITY);
+      try {
+        while(true) {
+          final Frame frame = mFilteredFrames.take();
+          if(frame == END_OF_FRAMES) {
+            return;
+          }
+          if(Highgui.imwrite(frame.mOutputFile.getPath(), frame.mImage,
+              params)) {
+            mWrittenCount++;
+          } else {
+            System.err.println("Failed to write " + frame.mOutputFile);
+            mFailedCount.incrementAndGet();
+          }
+          frame.mImage.release();
+        }
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+  
+  private class ProgressReporter extends Thread {
+    private final long mStartTime;
+    
+    ProgressReporter(final long startTime) {
+      super("BatchProgress");
+      setDaemon(true);
+      mStartTime = startTime;
+    }
+    
+    @Override
+    public void run() {
+      try {
+        while(true) {
+          Thread.sleep(PROGRESS_INTERVAL_MS);
+          final double seconds = (System.nanoTime() - mStartTime) / 1e9;
+          final long filtered = mFilteredCount.get();
+          System.out.println(String.format(Locale.US,
+              "%d frames filtered (%.1f fps), %d decoded frames waiting",
+              filtered, filtered / seconds, mDecodedFrames.size()));
+        }
+      } catch(InterruptedException e) {
+        // Done
+      }
+    }
+  }
+  
+  // Creates a filter from its command line name
+  public static Filter createFilter(final String name,
+      final ReferenceTarget reference) {
+    if("none".equals(name)) {
+      return new NoneFilter();
+    } else if("portra".equals(name)) {
+      return new PortraCurveFilter();
+    } else if("provia".equals(name)) {
+      return new ProviaCurveFilter();
+    } else if("velvia".equals(name)) {
+      return new VelviaCurveFilter();
+    } else if("crossprocess".equals(name)) {
+      return new CrossProcessCurveFilter();
+    } else if("rc".equals(name)) {
+      return new RecolorRCFilter();
+    } else if("rgv".equals(name)) {
+      return new RecolorRGVFilter();
+    } else if("cvm".equals(name)) {
+      return new RecolorCVMFilter();
+    } else if("strokeedges".equals(name)) {
+      return new StrokeEdgesFilter();
+    } else if("strokeedges360".equals(name)) {
+      return new StrokeEdgesFilter(360);
+    } else if("detection".equals(name)) {
+      if(reference == null) {
+        throw new IllegalArgumentException("detection needs --reference");
+      }
+      // Frames reach workers out of order, so there is nothing to track
+      return new ImageDetectionFilter(reference, 0);
+    } else if(name.startsWith("cube:")) {
+      final String path = name.substring("cube:".length());
+      try {
+        return CubeFile.read(new File(path));
+      } catch(IOException e) {
+        throw new IllegalArgumentException("Cannot read " + path + ": " +
+            e.getMessage());
+      }
+    }
+    throw new IllegalArgumentException("Unknown filter: " + name);
+  }
+  
+  public static void main(final String[] args) throws InterruptedException {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    
+    String filterNames = "none";
+    String referencePath = null;
+    String format = "png";
+    int workerCount = Runtime.getRuntime().availableProcessors();
+    int queueDepth = 2 * workerCount;
+    final List<File> positional = new ArrayList<File>();
+    try {
+      for(int i = 0; i < args.length; i++) {
+        if("--filters".equals(args[i])) {
+          filterNames = args[++i];
+        } else if("--reference".equals(args[i])) {
+          referencePath = args[++i];
+        } else if("--workers".equals(args[i])) {
+          workerCount = Integer.parseInt(args[++i]);
+        } else if("--queue".equals(args[i])) {
+          queueDepth = Integer.parseInt(args[++i]);
+        } else if("--format".equals(args[i])) {
+          format = args[++i];
+        } else {
+          positional.add(new File(args[i]));
+        }
+      }
+    } catch(RuntimeException e) {
+      positional.clear();
+    }
+    if(positional.size() < 2 || workerCount < 1 || queueDepth < 1 ||
+        !("png".equals(format) || "jpg".equals(format))) {
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    
+    ReferenceTarget reference = null;
+    if(referencePath != null) {
+      final Mat image = Highgui.imread(referencePath,
+          Highgui.CV_LOAD_IMAGE_COLOR);
+      if(image.empty()) {
+        System.err.println("Cannot read reference " + referencePath);
+        System.exit(1);
+      }
+      reference = new ReferenceTarget(new File(referencePath).getName(),
+          image, FeatureDetector.create(FeatureDetector.STAR),
+          DescriptorExtractor.create(DescriptorExtractor.FREAK));
+    }
+    
+    final String[] names = filterNames.split(",");
+    final ReferenceTarget chainReference = reference;
+    final ParallelFilter.Factory chainFactory = new ParallelFilter.Factory() {
+      @Override
+      public Filter create() {
+        final Filter[] filters = new Filter[names.length];
+        for(int i = 0; i < names.length; i++) {
+          filters[i] = createFilter(names[i].trim(), chainReference);
+        }
+        return new FilterChain(filters);
+      }
+    };
+    // Fail on unknown names before any work starts
+    try {
+      chainFactory.create();
+    } catch(IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    
+    final BatchProcessor processor = new BatchProcessor(chainFactory,
+        positional.get(0), format, workerCount, queueDepth);
+    processor.process(positional.subList(1, positional.size()));
+  }
+}
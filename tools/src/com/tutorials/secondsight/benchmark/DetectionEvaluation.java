@@ -0,0 +1,320 @@
+package com.tutorials.secondsight.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+import com.tutorials.secondsight.filters.ImageDetectionFilter;
+import com.tutorials.secondsight.filters.detection.DetectionConfig;
+import com.tutorials.secondsight.filters.detection.ReferenceTarget;
+import com.tutorials.secondsight.metrics.LatencyHistogram;
+
+// Measures the latency and accuracy of detection configs on a folder of
+// labeled photos of the reference image. Each photo, e.g. scene1.jpg,
+// has a scene1.txt beside it that holds the target's corners as 8
+// numbers, x and y clockwise from the reference image's top left, or no
+// numbers if the target is absent.
+public class DetectionEvaluation {
+  private static final String USAGE =
+    "Usage: DetectionEvaluation --reference image [--configs name,...]\n" +
+    "    [--budget n] [--detection-height n] [--scale-levels n]\n" +
+    "    [--repeats n] [--tolerance px] [--min-accuracy fraction]\n" +
+    "    labeledDir";
+  private static final List<String> IMAGE_EXTENSIONS =
+    Arrays.asList("jpg", "jpeg", "png", "bmp");
+  
+  private final Mat mReferenceBgr;
+  private final List<Sample> mSamples;
+  private final int mDetectionHeight;
+  private final int mScaleLevels;
+  private final int mRepeats;
+  private final double mTolerance;
+  
+  public DetectionEvaluation(final Mat referenceBgr,
+      final List<Sample> samples, final int detectionHeight,
+      final int scaleLevels, final int repeats, final double tolerance) {
+    mReferenceBgr = referenceBgr;
+    mSamples = samples;
+    mDetectionHeight = detectionHeight;
+    mScaleLevels = scaleLevels;
+    mRepeats = repeats;
+    mTolerance = tolerance;
+  }
+  
+  public Result evaluate(final DetectionConfig config) {
+    // The target takes ownership of its image
+    final ReferenceTarget target = new ReferenceTarget("reference",
+        mReferenceBgr.clone(), config.createFeatureDetector(),
+        config.createDescriptorExtractor(), mScaleLevels,
+        config.getKeypointBudget());
+    // No tracking, since the photos are unrelated
+    final ImageDetectionFilter filter =
+        new ImageDetectionFilter(target, config, 0, mDetectionHeight);
+    final Mat dst = new Mat();
+    final float[] corners = new float[8];
+    final LatencyHistogram latency = new LatencyHistogram();
+    final Result result = new Result(config);
+    
+    // Warm up the native code and caches
+    filter.apply(mSamples.get(0).mRgba, dst);
+    for(final Sample sample : mSamples) {
+      boolean isFound = false;
+      for(int i = 0; i < mRepeats; i++) {
+        filter.reset();
+        final long startTime = System.nanoTime();
+        filter.apply(sample.mRgba, dst);
+        latency.record(System.nanoTime() - startTime);
+        isFound = filter.getSceneCorners(corners);
+      }
+      result.add(sample, isFound ? corners : null, mTolerance);
+    }
+    result.mMedianNanos = latency.getPercentileNanos(0.5);
+    result.mP95Nanos = latency.getPercentileNanos(0.95);
+    dst.release();
+    return result;
+  }
+  
+  // Returns null if the file has no label beside it
+  private static Sample loadSample(final File file) throws IOException {
+    final String name = file.getName();
+    final int dot = name.lastIndexOf('.');
+    if(dot <= 0 || !IMAGE_EXTENSIONS.contains(
+        name.substring(dot + 1).toLowerCase(Locale.US))) {
+      return null;
+    }
+    final File labelFile =
+        new File(file.getParentFile(), name.substring(0, dot) + ".txt");
+    if(!labelFile.isFile()) {
+      return null;
+    }
+    final StringBuilder label = new StringBuilder();
+    final BufferedReader reader =
+        new BufferedReader(new FileReader(labelFile));
+    try {
+      String line;
+      while((line = reader.readLine()) != null) {
+        label.append(line).append(' ');
+      }
+    } finally {
+      reader.close();
+    }
+    final String text = label.toString().trim();
+    final String[] fields = text.isEmpty() ? new String[0] :
+        text.split("[\\s,]+");
+    float[] corners = null;
+    if(fields.length == 8) {
+      corners = new float[8];
+      for(int i = 0; i < 8; i++) {
+        corners[i] = Float.parseFloat(fields[i]);
+      }
+    } else if(fields.length != 0) {
+      throw new IOException("Expected 0 or 8 numbers in " + labelFile);
+    }
+    
+    final Mat bgr = Highgui.imread(file.getPath(),
+        Highgui.CV_LOAD_IMAGE_COLOR);
+    if(bgr.empty()) {
+      throw new IOException("Cannot read " + file);
+    }
+    final Mat rgba = new Mat();
+    Imgproc.cvtColor(bgr, rgba, Imgproc.COLOR_BGR2RGBA);
+    bgr.release();
+    return new Sample(rgba, corners);
+  }
+  
+  public static class Sample {
+    final Mat mRgba;
+    // null if the target is absent
+    final float[] mCorners;
+    
+    Sample(final Mat rgba, final float[] corners) {
+      mRgba = rgba;
+      mCorners = corners;
+    }
+  }
+  
+  public static class Result {
+    final DetectionConfig mConfig;
+    long mMedianNanos;
+    long mP95Nanos;
+    int mSampleCount;
+    int mCorrectCount;
+    int mPresentCount;
+    int mHitCount;
+    int mAbsentCount;
+    int mFalsePositiveCount;
+    int mLocatedCount;
+    double mCornerErrorTotal;
+    
+    Result(final DetectionConfig config) {
+      mConfig = config;
+    }
+    
+    // found is null if the target was not found
+    void add(final Sample sample, final float[] found,
+        final double tolerance) {
+      mSampleCount++;
+      if(sample.mCorners == null) {
+        mAbsentCount++;
+        if(found == null) {
+          mCorrectCount++;
+        } else {
+          mFalsePositiveCount++;
+        }
+        return;
+      }
+      mPresentCount++;
+      if(found == null) {
+        return;
+      }
+      double error = 0;
+      for(int i = 0; i < 8; i += 2) {
+        final double dx = found[i] - sample.mCorners[i];
+        final double dy = found[i + 1] - sample.mCorners[i + 1];
+        error += Math.sqrt(dx * dx + dy * dy) / 4;
+      }
+      mLocatedCount++;
+      mCornerErrorTotal += error;
+      if(error <= tolerance) {
+        mHitCount++;
+        mCorrectCount++;
+      }
+    }
+    
+    public double getAccuracy() {
+      return mSampleCount > 0 ? mCorrectCount / (double)mSampleCount : 0;
+    }
+    
+    @Override
+    public String toString() {
+      return String.format(Locale.US,
+          "%-20s %9.1f %9.1f %8.1f%% %8.1f%% %8.1f%% %9.1f",
+          mConfig, mMedianNanos / 1e6, mP95Nanos / 1e6,
+          100 * getAccuracy(),
+          mPresentCount > 0 ? 100.0 * mHitCount / mPresentCount : 0,
+          mAbsentCount > 0 ? 100.0 * mFalsePositiveCount / mAbsentCount : 0,
+          mLocatedCount > 0 ? mCornerErrorTotal / mLocatedCount : 0);
+    }
+  }
+  
+  public static void main(final String[] args) throws IOException {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    
+    String referencePath = null;
+    String configNames = null;
+    int budget = -1;
+    int detectionHeight = 360;
+    int scaleLevels = 3;
+    int repeats = 3;
+    double tolerance = 10;
+    double minAccuracy = 0.9;
+    File labeledDir = null;
+    try {
+      for(int i = 0; i < args.length; i++) {
+        if("--reference".equals(args[i])) {
+          referencePath = args[++i];
+        } else if("--configs".equals(args[i])) {
+          configNames = args[++i];
+        } else if("--budget".equals(args[i])) {
+          budget = Integer.parseInt(args[++i]);
+        } else if("--detection-height".equals(args[i])) {
+          detectionHeight = Integer.parseInt(args[++i]);
+        } else if("--scale-levels".equals(args[i])) {
+          scaleLevels = Integer.parseInt(args[++i]);
+        } else if("--repeats".equals(args[i])) {
+          repeats = Integer.parseInt(args[++i]);
+        } else if("--tolerance".equals(args[i])) {
+          tolerance = Double.parseDouble(args[++i]);
+        } else if("--min-accuracy".equals(args[i])) {
+          minAccuracy = Double.parseDouble(args[++i]);
+        } else if(labeledDir == null) {
+          labeledDir = new File(args[i]);
+        } else {
+          throw new IllegalArgumentException(args[i]);
+        }
+      }
+    } catch(RuntimeException e) {
+      labeledDir = null;
+    }
+    final List<DetectionConfig> configs = new ArrayList<DetectionConfig>();
+    if(configNames == null) {
+      configs.addAll(Arrays.asList(DetectionConfig.PRESETS));
+    } else {
+      for(final String name : configNames.split(",")) {
+        final DetectionConfig config = DetectionConfig.forName(name);
+        if(config == null) {
+          System.err.println("Unknown config " + name);
+          labeledDir = null;
+        } else {
+          configs.add(config);
+        }
+      }
+    }
+    if(referencePath == null || labeledDir == null ||
+        !labeledDir.isDirectory() || scaleLevels < 1 || repeats < 1) {
+      System.err.println(USAGE);
+      System.err.println("Configs: " +
+          Arrays.toString(DetectionConfig.PRESETS));
+      System.exit(2);
+    }
+    
+    final Mat reference = Highgui.imread(referencePath,
+        Highgui.CV_LOAD_IMAGE_COLOR);
+    if(reference.empty()) {
+      System.err.println("Cannot read reference " + referencePath);
+      System.exit(1);
+    }
+    final File[] files = labeledDir.listFiles();
+    final List<Sample> samples = new ArrayList<Sample>();
+    if(files != null) {
+      Arrays.sort(files);
+      for(final File file : files) {
+        final Sample sample = loadSample(file);
+        if(sample != null) {
+          samples.add(sample);
+        }
+      }
+    }
+    if(samples.isEmpty()) {
+      System.err.println("No labeled images in " + labeledDir);
+      System.exit(1);
+    }
+    
+    final DetectionEvaluation evaluation = new DetectionEvaluation(reference,
+        samples, detectionHeight, scaleLevels, repeats, tolerance);
+    System.out.println(samples.size() + " labeled images");
+    System.out.println(String.format(Locale.US,
+        "%-20s %9s %9s %9s %9s %9s %9s", "Config", "p50 ms", "p95 ms",
+        "accuracy", "hits", "false +", "error px"));
+    Result fastest = null;
+    for(DetectionConfig config : configs) {
+      if(budget >= 0) {
+        config = config.withKeypointBudget(budget);
+      }
+      final Result result = evaluation.evaluate(config);
+      System.out.println(result);
+      if(result.getAccuracy() >= minAccuracy && (fastest == null ||
+          result.mMedianNanos < fastest.mMedianNanos)) {
+        fastest = result;
+      }
+    }
+    if(fastest == null) {
+      System.out.println(String.format(Locale.US,
+          "No config reaches %.0f%% accuracy", 100 * minAccuracy));
+    } else {
+      System.out.println(String.format(Locale.US,
+          "Fastest config with at least %.0f%% accuracy: %s",
+          100 * minAccuracy, fastest.mConfig));
+    }
+  }
+}
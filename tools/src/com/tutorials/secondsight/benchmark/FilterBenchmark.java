@@ -0,0 +1,312 @@
+package com.tutorials.secondsight.benchmark;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.FeatureDetector;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+import com.tutorials.secondsight.batch.BatchProcessor;
+import com.tutorials.secondsight.filters.Filter;
+import com.tutorials.secondsight.filters.FilterChain;
+import com.tutorials.secondsight.filters.ImageDetectionFilter;
+import com.tutorials.secondsight.filters.ParallelFilter;
+import com.tutorials.secondsight.filters.convolution.StrokeEdgesFilter;
+import com.tutorials.secondsight.filters.curve.PortraCurveFilter;
+import com.tutorials.secondsight.filters.detection.ReferenceTarget;
+import com.tutorials.secondsight.filters.mixer.RecolorRCFilter;
+
+// Measures the per-frame cost of every Filter on the desktop OpenCV Java
+// bindings, at camera resolutions, on synthetic noise and on scenes with
+// the reference image composited in
+public class FilterBenchmark {
+  private static final String USAGE =
+    "Usage: FilterBenchmark [--reference image] [--iterations n]\n" +
+    "    [--iteration-ms n] [--warmup-ms n] [benchmark...]";
+  private static final String DEFAULT_REFERENCE =
+    "res/drawable-nodpi/dominos.jpg";
+  private static final String[] BENCHMARKS = {
+    "portra", "provia", "velvia", "crossprocess",
+    "rc", "rgv", "cvm",
+    "strokeedges", "strokeedgesparallel", "strokeedges360",
+    "detection", "detection360", "tracking360",
+    "camera"
+  };
+  private static final Size[] FRAME_SIZES = {
+    new Size(640, 480), new Size(1280, 720), new Size(1920, 1080)
+  };
+  private static final int REDETECTION_INTERVAL = 10;
+  private static final int DETECTION_HEIGHT = 360;
+  
+  private final ReferenceTarget mReference;
+  private final Mat mReferenceRgba;
+  private final int mIterations;
+  private final long mIterationNanos;
+  private final long mWarmupNanos;
+  private final Method mAllocatedBytes;
+  private final Object mThreadBean;
+  
+  public FilterBenchmark(final Mat referenceBgr, final int iterations,
+      final long iterationMillis, final long warmupMillis) {
+    mReference = new ReferenceTarget("reference", referenceBgr,
+        FeatureDetector.create(FeatureDetector.STAR),
+        DescriptorExtractor.create(DescriptorExtractor.FREAK));
+    mReferenceRgba = mReference.getImage();
+    mIterations = iterations;
+    mIterationNanos = iterationMillis * 1000000L;
+    mWarmupNanos = warmupMillis * 1000000L;
+    
+    // com.sun.management is not on every VM (nor on Android), so look up
+    // the per-thread allocation counter reflectively
+    Object threadBean = null;
+    Method allocatedBytes = null;
+    try {
+      threadBean = Class.forName("java.lang.management.ManagementFactory")
+          .getMethod("getThreadMXBean").invoke(null);
+      allocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+          .getMethod("getThreadAllocatedBytes", long.class);
+      allocatedBytes.invoke(threadBean, Thread.currentThread().getId());
+    } catch(Exception e) {
+      threadBean = null;
+      allocatedBytes = null;
+    }
+    mThreadBean = threadBean;
+    mAllocatedBytes = allocatedBytes;
+  }
+  
+  public void run(final List<String> benchmarks) {
+    System.out.println(String.format(Locale.US,
+        "%-20s %-10s %-9s %12s %10s %14s",
+        "Benchmark", "Size", "Frame", "ns/frame", "error", "bytes/frame"));
+    for(final Size size : FRAME_SIZES) {
+      final Mat synthetic = createSyntheticFrame(size);
+      final Mat scene = createScene(synthetic);
+      for(final String name : benchmarks) {
+        measure(name, size, "synthetic", synthetic);
+        measure(name, size, "scene", scene);
+      }
+      synthetic.release();
+      scene.release();
+    }
+  }
+  
+  private void measure(final String name, final Size size,
+      final String frameName, final Mat frame) {
+    // Fresh filters per case, so tracking state does not carry over
+    final Filter filter = createFilter(name);
+    final boolean isInPlace = "camera".equals(name);
+    final Mat src = frame.clone();
+    final Mat dst = new Mat(frame.size(), frame.type());
+    
+    runFor(filter, frame, src, dst, isInPlace, mWarmupNanos);
+    final double[] nanosPerFrame = new double[mIterations];
+    long frames = 0;
+    long bytes = 0;
+    for(int i = 0; i < mIterations; i++) {
+      final long startBytes = allocatedBytes();
+      final long startTime = System.nanoTime();
+      final long count =
+          runFor(filter, frame, src, dst, isInPlace, mIterationNanos);
+      nanosPerFrame[i] = (double)(System.nanoTime() - startTime) / count;
+      bytes += allocatedBytes() - startBytes;
+      frames += count;
+    }
+    
+    double mean = 0;
+    for(final double value : nanosPerFrame) {
+      mean += value;
+    }
+    mean /= mIterations;
+    double variance = 0;
+    for(final double value : nanosPerFrame) {
+      variance += (value - mean) * (value - mean);
+    }
+    final double error = mIterations > 1 ?
+        Math.sqrt(variance / (mIterations - 1)) : 0;
+    System.out.println(String.format(Locale.US,
+        "%-20s %-10s %-9s %12.0f %10.0f %14s",
+        name, (int)size.width + "x" + (int)size.height, frameName, mean,
+        error, mAllocatedBytes == null ? "n/a" :
+            String.format(Locale.US, "%.1f", (double)bytes / frames)));
+    src.release();
+    dst.release();
+  }
+  
+  // Returns the number of frames filtered in the given time
+  private static long runFor(final Filter filter, final Mat frame,
+      final Mat src, final Mat dst, final boolean isInPlace,
+      final long nanos) {
+    final long endTime = System.nanoTime() + nanos;
+    long count = 0;
+    do {
+      if(isInPlace) {
+        // Like onCameraFrame, which filters each new camera frame in place
+        frame.copyTo(src);
+        filter.apply(src, src);
+      } else {
+        filter.apply(src, dst);
+      }
+      count++;
+    } while(System.nanoTime() < endTime);
+    return count;
+  }
+  
+  // Counts Java heap allocations on the calling thread only; native Mat
+  // data and allocations on ParallelFilter's workers are not included
+  private long allocatedBytes() {
+    if(mAllocatedBytes == null) {
+      return 0;
+    }
+    try {
+      return (Long)mAllocatedBytes.invoke(mThreadBean,
+          Thread.currentThread().getId());
+    } catch(Exception e) {
+      return 0;
+    }
+  }
+  
+  private Filter createFilter(final String name) {
+    if("strokeedgesparallel".equals(name)) {
+      return createParallelStrokeEdges();
+    } else if("detection".equals(name)) {
+      return new ImageDetectionFilter(mReference, 0);
+    } else if("detection360".equals(name)) {
+      return new ImageDetectionFilter(mReference, 0, DETECTION_HEIGHT);
+    } else if("tracking360".equals(name)) {
+      return new ImageDetectionFilter(mReference, REDETECTION_INTERVAL,
+          DETECTION_HEIGHT);
+    } else if("camera".equals(name)) {
+      // The chains CameraActivity applies when there is no FramePipeline
+      final FilterChain filterChain = new FilterChain();
+      filterChain.setParallel(
+          Runtime.getRuntime().availableProcessors() > 1);
+      filterChain.setFilters(new PortraCurveFilter(), new RecolorRCFilter(),
+          createParallelStrokeEdges());
+      return new FilterChain(filterChain, new ImageDetectionFilter(
+          mReference, REDETECTION_INTERVAL, DETECTION_HEIGHT));
+    }
+    return BatchProcessor.createFilter(name, mReference);
+  }
+  
+  private static Filter createParallelStrokeEdges() {
+    return new ParallelFilter(new ParallelFilter.Factory() {
+      @Override
+      public Filter create() {
+        return new StrokeEdgesFilter();
+      }
+    }, StrokeEdgesFilter.HALO);
+  }
+  
+  // Smoothed noise, which has some texture for the detector to find
+  private static Mat createSyntheticFrame(final Size size) {
+    final Mat noise = new Mat(size, CvType.CV_8UC4);
+    Core.randu(noise, 0, 256);
+    final Mat frame = new Mat();
+    Imgproc.GaussianBlur(noise, frame, new Size(9, 9), 0);
+    noise.release();
+    return frame;
+  }
+  
+  // Warps the reference image onto the middle of the background, slightly
+  // tilted, as if the camera were looking at it at an angle
+  private Mat createScene(final Mat background) {
+    final double width = background.cols();
+    final double height = background.rows();
+    final double referenceWidth = mReferenceRgba.cols();
+    final double referenceHeight = mReferenceRgba.rows();
+    final double scale = Math.min(0.6 * width / referenceWidth,
+        0.6 * height / referenceHeight);
+    final double w = 0.5 * scale * referenceWidth;
+    final double h = 0.5 * scale * referenceHeight;
+    final double cx = 0.5 * width;
+    final double cy = 0.5 * height;
+    final MatOfPoint2f referenceCorners = new MatOfPoint2f(
+        new Point(0, 0),
+        new Point(referenceWidth, 0),
+        new Point(referenceWidth, referenceHeight),
+        new Point(0, referenceHeight));
+    final MatOfPoint2f sceneCorners = new MatOfPoint2f(
+        new Point(cx - 0.9 * w, cy - h),
+        new Point(cx + 0.9 * w, cy - 0.9 * h),
+        new Point(cx + w, cy + h),
+        new Point(cx - w, cy + 0.95 * h));
+    final Mat homography =
+        Imgproc.getPerspectiveTransform(referenceCorners, sceneCorners);
+    final Mat warped = new Mat();
+    Imgproc.warpPerspective(mReferenceRgba, warped, homography,
+        background.size());
+    
+    final Mat mask = new Mat(mReferenceRgba.size(), CvType.CV_8UC1,
+        new Scalar(255));
+    final Mat warpedMask = new Mat();
+    Imgproc.warpPerspective(mask, warpedMask, homography, background.size());
+    final Mat scene = background.clone();
+    warped.copyTo(scene, warpedMask);
+    
+    referenceCorners.release();
+    sceneCorners.release();
+    homography.release();
+    warped.release();
+    mask.release();
+    warpedMask.release();
+    return scene;
+  }
+  
+  public static void main(final String[] args) {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    
+    String referencePath = DEFAULT_REFERENCE;
+    int iterations = 5;
+    long iterationMillis = 1000;
+    long warmupMillis = 2000;
+    final List<String> benchmarks = new ArrayList<String>();
+    try {
+      for(int i = 0; i < args.length; i++) {
+        if("--reference".equals(args[i])) {
+          referencePath = args[++i];
+        } else if("--iterations".equals(args[i])) {
+          iterations = Integer.parseInt(args[++i]);
+        } else if("--iteration-ms".equals(args[i])) {
+          iterationMillis = Long.parseLong(args[++i]);
+        } else if("--warmup-ms".equals(args[i])) {
+          warmupMillis = Long.parseLong(args[++i]);
+        } else if(Arrays.asList(BENCHMARKS).contains(args[i])) {
+          benchmarks.add(args[i]);
+        } else {
+          throw new IllegalArgumentException(args[i]);
+        }
+      }
+    } catch(RuntimeException e) {
+      iterations = 0;
+    }
+    if(iterations < 1 || iterationMillis < 1 || warmupMillis < 0) {
+      System.err.println(USAGE);
+      System.err.println("Benchmarks: " + Arrays.toString(BENCHMARKS));
+      System.exit(2);
+    }
+    if(benchmarks.isEmpty()) {
+      benchmarks.addAll(Arrays.asList(BENCHMARKS));
+    }
+    
+    final Mat reference = Highgui.imread(referencePath,
+        Highgui.CV_LOAD_IMAGE_COLOR);
+    if(reference.empty()) {
+      System.err.println("Cannot read reference " + referencePath);
+      System.exit(1);
+    }
+    new FilterBenchmark(reference, iterations, iterationMillis, warmupMillis)
+        .run(benchmarks);
+  }
+}